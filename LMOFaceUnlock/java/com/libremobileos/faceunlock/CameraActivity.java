@@ -46,10 +46,9 @@ import android.view.TextureView;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import com.libremobileos.faceunlock.common.ParallelYuvToRgbConverter;
 import com.libremobileos.yifan.face.AutoFitTextureView;
-import com.libremobileos.yifan.face.ImageUtils;
 
-import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -75,12 +74,10 @@ public abstract class CameraActivity extends Activity
     private CaptureRequest captureRequest;
     private CaptureRequest.Builder captureRequestBuilder;
     private ImageReader previewReader;
-    private final byte[][] yuvBytes = new byte[3][];
+    private ParallelYuvToRgbConverter converter;
     private int[] rgbBytes = null;
-    private boolean isProcessingFrame = false;
-    private int yRowStride;
-    private Runnable postInferenceCallback;
-    private Runnable imageConverter;
+    // Set on the camera thread, cleared by the UI thread once the frame is processed.
+    private volatile boolean isProcessingFrame = false;
     private Bitmap rgbFrameBitmap = null;
     private Size previewSize;
 
@@ -149,6 +146,7 @@ public abstract class CameraActivity extends Activity
         mBackgroundThread = new HandlerThread("Camera Background");
         mBackgroundThread.start();
         mBackgroundHandler = new Handler(mBackgroundThread.getLooper());
+        converter = new ParallelYuvToRgbConverter();
     }
 
     private void stopBackgroundThread() {
@@ -160,6 +158,8 @@ public abstract class CameraActivity extends Activity
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
+        converter.shutdown();
+        converter = null;
     }
 
     private void createCameraPreview() {
@@ -399,23 +399,6 @@ public abstract class CameraActivity extends Activity
         super.onPause();
     }
 
-    private void fillBytes(final Image.Plane[] planes, final byte[][] yuvBytes) {
-        // Because of the variable row stride it's not possible to know in
-        // advance the actual necessary dimensions of the yuv planes.
-        for (int i = 0; i < planes.length; ++i) {
-            final ByteBuffer buffer = planes[i].getBuffer();
-            if (yuvBytes[i] == null) {
-                yuvBytes[i] = new byte[buffer.capacity()];
-            }
-            buffer.get(yuvBytes[i]);
-        }
-    }
-
-    private int[] getRgbBytes() {
-        imageConverter.run();
-        return rgbBytes;
-    }
-
     protected Bitmap getBitmap() {
         return rgbFrameBitmap;
     }
@@ -434,9 +417,7 @@ public abstract class CameraActivity extends Activity
     }
 
     protected void readyForNextImage() {
-        if (postInferenceCallback != null) {
-            postInferenceCallback.run();
-        }
+        isProcessingFrame = false;
     }
 
     @Override
@@ -461,32 +442,25 @@ public abstract class CameraActivity extends Activity
             isProcessingFrame = true;
             Trace.beginSection("imageAvailable");
             final Image.Plane[] planes = image.getPlanes();
-            fillBytes(planes, yuvBytes);
-            yRowStride = planes[0].getRowStride();
-            final int uvRowStride = planes[1].getRowStride();
-            final int uvPixelStride = planes[1].getPixelStride();
-
-            imageConverter =
-                    () ->
-                            ImageUtils.convertYUV420ToARGB8888(
-                                    yuvBytes[0],
-                                    yuvBytes[1],
-                                    yuvBytes[2],
-                                    previewWidth,
-                                    previewHeight,
-                                    yRowStride,
-                                    uvRowStride,
-                                    uvPixelStride,
-                                    rgbBytes);
-
-            postInferenceCallback =
-                    () -> {
-                        image.close();
-                        isProcessingFrame = false;
-                    };
-
-            rgbFrameBitmap.setPixels(
-                    getRgbBytes(), 0, previewWidth, 0, 0, previewWidth, previewHeight);
+            try {
+                converter.convert(
+                        planes[0].getBuffer(),
+                        planes[1].getBuffer(),
+                        planes[2].getBuffer(),
+                        previewWidth,
+                        previewHeight,
+                        planes[0].getRowStride(),
+                        planes[1].getRowStride(),
+                        planes[1].getPixelStride(),
+                        0,
+                        1,
+                        rgbBytes);
+            } finally {
+                // The pixels are ours now, give the buffer back to the camera right away.
+                image.close();
+            }
+
+            rgbFrameBitmap.setPixels(rgbBytes, 0, previewWidth, 0, 0, previewWidth, previewHeight);
 
             processImage();
         } catch (final Exception e) {
@@ -40,7 +40,7 @@ import android.widget.TextView;
 import androidx.annotation.Nullable;
 
 import com.libremobileos.faceunlock.client.IFaceUnlockManager;
-import com.libremobileos.yifan.face.FaceDataEncoder;
+import com.libremobileos.faceunlock.common.FaceTemplates;
 import com.libremobileos.yifan.face.FaceDetector;
 import com.libremobileos.yifan.face.FaceFinder;
 import com.libremobileos.yifan.face.FaceScanner;
@@ -233,14 +233,14 @@ public class ScanActivity extends CameraActivity {
                     }
 
                     if (faces.size() == 10) {
-                        String encodedFaces =
-                                FaceDataEncoder.encode(
+                        byte[] templates =
+                                FaceTemplates.encode(
                                         faces.stream()
                                                 .map(FaceScanner.Face::getExtra)
                                                 .toArray(float[][]::new));
                         if (mToken != null) {
                             try {
-                                faceUnlockManager.finishEnroll(encodedFaces, mToken);
+                                faceUnlockManager.finishEnrollTemplates(templates, mToken);
                                 final Intent intent = new Intent();
                                 ComponentName componentName =
                                         ComponentName.unflattenFromString(
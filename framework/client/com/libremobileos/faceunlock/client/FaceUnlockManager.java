@@ -66,4 +66,13 @@ public final class FaceUnlockManager {
             throw new RuntimeException("Failed when finishEnroll(): " + e);
         }
     }
+
+    /** Save Enrolled face templates, encoded with FaceTemplates, and HAT */
+    public void finishEnrollTemplates(byte[] templates, byte[] token) {
+        try {
+            mFaceUnlockManager.finishEnrollTemplates(templates, token);
+        } catch (RemoteException e) {
+            throw new RuntimeException("Failed when finishEnrollTemplates(): " + e);
+        }
+    }
 }
@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2023 LibreMobileOS Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.libremobileos.faceunlock.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Enrolled face templates in the binary format they are sent to the server and stored in.
+ *
+ * <p>All values are little-endian. A header of {@link #HEADER_SIZE} bytes holds five ints: {@link
+ * #MAGIC}, {@link #VERSION}, the encoding, the dimension of each template and their count. Since
+ * version 2, the id of the face each template belongs to follows as one int per template. The
+ * templates follow back to back, as floats for {@link #ENCODING_FLOAT32}. For {@link
+ * #ENCODING_INT8}, one float scale per template comes first, then the templates as signed bytes
+ * that are multiplied by their scale. Version 1 has no face ids, its templates all belong to face
+ * 0.
+ *
+ * <p>Templates are read straight from the buffer, which may be a memory mapped file.
+ */
+public final class FaceTemplates {
+
+    /** "LMFT" when read as bytes. */
+    public static final int MAGIC = 0x54464d4c;
+    public static final int VERSION = 2;
+    public static final int ENCODING_FLOAT32 = 0;
+    /** A quarter of the size, values are off by at most half a step of 1/127 of the largest. */
+    public static final int ENCODING_INT8 = 1;
+    public static final int HEADER_SIZE = 5 * Integer.BYTES;
+
+    // Float templates, or the scales of int8 ones.
+    private final FloatBuffer mData;
+    // Int8 templates, null for float ones.
+    private final ByteBuffer mQuantized;
+    // Null for version 1.
+    private final IntBuffer mFaceIds;
+    private final int mDimension;
+    private final int mCount;
+
+    private FaceTemplates(
+            FloatBuffer data, ByteBuffer quantized, IntBuffer faceIds, int dimension, int count) {
+        mData = data;
+        mQuantized = quantized;
+        mFaceIds = faceIds;
+        mDimension = dimension;
+        mCount = count;
+    }
+
+    /**
+     * Encodes the templates of a single face, whose id is assigned when it is stored.
+     *
+     * @param templates Templates, all of the same dimension
+     * @throws IllegalArgumentException if there are none or their dimensions differ
+     */
+    public static byte[] encode(float[][] templates) {
+        return encode(templates, new int[templates.length]);
+    }
+
+    /**
+     * Encodes templates.
+     *
+     * @param templates Templates, all of the same dimension
+     * @param faceIds Id of the face each template belongs to
+     * @throws IllegalArgumentException if there are none, their dimensions differ or the number of
+     *     ids doesn't match
+     */
+    public static byte[] encode(float[][] templates, int[] faceIds) {
+        return encode(templates, faceIds, ENCODING_FLOAT32);
+    }
+
+    /**
+     * Encodes templates.
+     *
+     * @param templates Templates, all of the same dimension
+     * @param faceIds Id of the face each template belongs to
+     * @param encoding {@link #ENCODING_FLOAT32} or {@link #ENCODING_INT8}
+     * @throws IllegalArgumentException if there are none, their dimensions differ, the number of
+     *     ids doesn't match or the encoding is unknown
+     */
+    public static byte[] encode(float[][] templates, int[] faceIds, int encoding) {
+        if (templates.length == 0 || templates[0].length == 0) {
+            throw new IllegalArgumentException("no templates");
+        }
+        if (faceIds.length != templates.length) {
+            throw new IllegalArgumentException("one face id per template needed");
+        }
+        if (encoding != ENCODING_FLOAT32 && encoding != ENCODING_INT8) {
+            throw new IllegalArgumentException("unknown encoding " + encoding);
+        }
+        final int dimension = templates[0].length;
+        final int count = templates.length;
+        final int idsEnd = HEADER_SIZE + count * Integer.BYTES;
+        final ByteBuffer buffer =
+                ByteBuffer.allocate(idsEnd + (int) dataSize(encoding, dimension, count))
+                        .order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(encoding).putInt(dimension).putInt(count);
+        for (int faceId : faceIds) {
+            buffer.putInt(faceId);
+        }
+        // Floats, or the scales before the int8 values.
+        final FloatBuffer data = buffer.asFloatBuffer();
+        final byte[] quantized = new byte[dimension];
+        for (int i = 0; i < count; i++) {
+            final float[] template = templates[i];
+            if (template.length != dimension) {
+                throw new IllegalArgumentException("templates of different dimensions");
+            }
+            if (encoding == ENCODING_FLOAT32) {
+                data.put(template);
+            } else {
+                data.put(quantize(template, quantized));
+                buffer.position(idsEnd + count * Float.BYTES + i * dimension);
+                buffer.put(quantized);
+            }
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Quantizes values to signed bytes the way {@link #ENCODING_INT8} stores them.
+     *
+     * @param values Values to quantize
+     * @param out Receives the quantized values, as many as there are values
+     * @return Scale to multiply the quantized values by, 0 if all values are 0
+     */
+    public static float quantize(float[] values, byte[] out) {
+        float max = 0;
+        for (float value : values) {
+            max = Math.max(max, Math.abs(value));
+        }
+        final float scale = max / 127;
+        final float inverse = max > 0 ? 127 / max : 0;
+        for (int i = 0; i < values.length; i++) {
+            out[i] = (byte) Math.round(values[i] * inverse);
+        }
+        return scale;
+    }
+
+    private static long dataSize(int encoding, int dimension, int count) {
+        return encoding == ENCODING_INT8
+                ? (long) count * Float.BYTES + (long) dimension * count
+                : (long) dimension * count * Float.BYTES;
+    }
+
+    /**
+     * Reads templates from a buffer, from its position on. The buffer must not change afterwards.
+     *
+     * @throws IllegalArgumentException if the buffer doesn't hold templates of this version
+     */
+    public static FaceTemplates wrap(ByteBuffer buffer) {
+        final ByteBuffer data = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        if (data.remaining() < HEADER_SIZE || data.getInt(0) != MAGIC) {
+            throw new IllegalArgumentException("not face templates");
+        }
+        final int version = data.getInt(Integer.BYTES);
+        if (version != 1 && version != VERSION) {
+            throw new IllegalArgumentException("unsupported version " + version);
+        }
+        final int encoding = data.getInt(2 * Integer.BYTES);
+        if (encoding != ENCODING_FLOAT32 && (encoding != ENCODING_INT8 || version < 2)) {
+            throw new IllegalArgumentException("unsupported encoding " + encoding);
+        }
+        final int dimension = data.getInt(3 * Integer.BYTES);
+        final int count = data.getInt(4 * Integer.BYTES);
+        final long idsSize = version >= 2 ? (long) count * Integer.BYTES : 0;
+        if (dimension <= 0
+                || count <= 0
+                || idsSize + dataSize(encoding, dimension, count)
+                        > data.remaining() - HEADER_SIZE) {
+            throw new IllegalArgumentException("truncated face templates");
+        }
+        data.position(HEADER_SIZE);
+        final IntBuffer faceIds =
+                version >= 2 ? data.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer() : null;
+        data.position(HEADER_SIZE + (int) idsSize);
+        final FloatBuffer floats = data.slice().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+        ByteBuffer quantized = null;
+        if (encoding == ENCODING_INT8) {
+            data.position(HEADER_SIZE + (int) idsSize + count * Float.BYTES);
+            quantized = data.slice();
+        }
+        return new FaceTemplates(floats, quantized, faceIds, dimension, count);
+    }
+
+    /** Wraps encoded templates, see {@link #wrap(ByteBuffer)}. */
+    public static FaceTemplates wrap(byte[] encoded) {
+        return wrap(ByteBuffer.wrap(encoded));
+    }
+
+    /**
+     * Maps a file of templates into memory.
+     *
+     * @throws IOException if the file can't be read or doesn't hold templates of this version
+     */
+    public static FaceTemplates map(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            // The mapping stays valid after the channel is closed.
+            return wrap(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch (IllegalArgumentException e) {
+            throw new IOException(file + ": " + e.getMessage());
+        }
+    }
+
+    /** Number of values in each template. */
+    public int getDimension() {
+        return mDimension;
+    }
+
+    /** Number of templates. */
+    public int getCount() {
+        return mCount;
+    }
+
+    /** {@link #ENCODING_FLOAT32} or {@link #ENCODING_INT8}. */
+    public int getEncoding() {
+        return mQuantized != null ? ENCODING_INT8 : ENCODING_FLOAT32;
+    }
+
+    /** Id of the face a template belongs to. */
+    public int getFaceId(int index) {
+        if (index < 0 || index >= mCount) {
+            throw new IndexOutOfBoundsException("template " + index + " of " + mCount);
+        }
+        return mFaceIds != null ? mFaceIds.get(index) : 0;
+    }
+
+    /** Copies a template into {@code out}, which must hold {@link #getDimension} values. */
+    public void get(int index, float[] out) {
+        if (index < 0 || index >= mCount) {
+            throw new IndexOutOfBoundsException("template " + index + " of " + mCount);
+        }
+        if (mQuantized != null) {
+            final float scale = mData.get(index);
+            final int offset = index * mDimension;
+            for (int i = 0; i < mDimension; i++) {
+                out[i] = mQuantized.get(offset + i) * scale;
+            }
+            return;
+        }
+        // Absolute bulk reads would need API 35, a duplicate keeps this thread safe.
+        final FloatBuffer data = mData.duplicate();
+        data.position(index * mDimension);
+        data.get(out, 0, mDimension);
+    }
+
+    /** Copies all templates into arrays, int8 ones are dequantized. */
+    public float[][] toArray() {
+        final float[][] templates = new float[mCount][mDimension];
+        for (int i = 0; i < mCount; i++) {
+            get(i, templates[i]);
+        }
+        return templates;
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) 2023 LibreMobileOS Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.libremobileos.faceunlock.common;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Converts YUV_420_888 frames to ARGB_8888 on a small fixed pool of worker threads.
+ *
+ * <p>The frame is split into horizontal bands of source rows, one per thread. The calling thread
+ * converts the first band itself while the workers handle the rest. Frames smaller than a
+ * threshold are converted on the calling thread only, as handing them off costs more than it
+ * saves. The server's {@code --convert-bench} dump measures where that is on a device. By default
+ * the threshold is {@link #MIN_PARALLEL_PIXELS}, which keeps every frame on the calling thread.
+ */
+public final class ParallelYuvToRgbConverter {
+
+    /**
+     * Output frames with fewer pixels than this are converted single-threaded by default, that is
+     * all of them. Splitting hasn't been measured to pay off on any device, so it is only used from
+     * a threshold passed to the constructor, such as one measured by {@code --convert-bench}.
+     */
+    public static final int MIN_PARALLEL_PIXELS = Integer.MAX_VALUE;
+
+    private static final int MAX_THREADS = 4;
+    private static final long KEEP_ALIVE_SECONDS = 10;
+
+    private final int mThreads;
+    private final int mMinParallelPixels;
+    private final ThreadPoolExecutor mExecutor;
+    // Bands handed to the workers, reused for every frame so converting doesn't allocate.
+    private final Band[] mBands;
+    private final Object mLock = new Object();
+    // Guarded by mLock.
+    private int mPendingBands;
+    private RuntimeException mFailure;
+
+    // The frame being converted, set before the bands are handed to the workers.
+    private ByteBuffer mYBuffer;
+    private ByteBuffer mUBuffer;
+    private ByteBuffer mVBuffer;
+    private int mWidth;
+    private int mHeight;
+    private int mYRowStride;
+    private int mUvRowStride;
+    private int mUvPixelStride;
+    private int mRotation;
+    private int mScale;
+    private int[] mOut;
+
+    /** Creates a converter using up to four threads, depending on the number of cores. */
+    public ParallelYuvToRgbConverter() {
+        this(defaultThreads());
+    }
+
+    /** Threads the default constructor uses, up to four depending on the number of cores. */
+    public static int defaultThreads() {
+        return Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a converter.
+     *
+     * @param threads Number of bands to split a frame into, including the calling thread
+     */
+    public ParallelYuvToRgbConverter(int threads) {
+        this(threads, MIN_PARALLEL_PIXELS);
+    }
+
+    /**
+     * Creates a converter.
+     *
+     * @param threads Number of bands to split a frame into, including the calling thread
+     * @param minParallelPixels Output frames with fewer pixels are converted single-threaded
+     */
+    public ParallelYuvToRgbConverter(int threads, int minParallelPixels) {
+        mThreads = Math.max(1, threads);
+        mMinParallelPixels = minParallelPixels;
+        mBands = new Band[mThreads];
+        for (int i = 0; i < mThreads; i++) {
+            mBands[i] = new Band();
+        }
+        if (mThreads > 1) {
+            final AtomicInteger count = new AtomicInteger();
+            // At most one band per worker is ever queued, as convert() waits for all of them.
+            mExecutor =
+                    new ThreadPoolExecutor(
+                            mThreads - 1,
+                            mThreads - 1,
+                            KEEP_ALIVE_SECONDS,
+                            TimeUnit.SECONDS,
+                            new ArrayBlockingQueue<>(mThreads - 1),
+                            r -> {
+                                Thread t = new Thread(r, "YuvConverter-" + count.incrementAndGet());
+                                t.setDaemon(true);
+                                return t;
+                            });
+            // Don't keep idle threads around between unlock attempts.
+            mExecutor.allowCoreThreadTimeOut(true);
+        } else {
+            mExecutor = null;
+        }
+    }
+
+    /** A range of output rows, converted on a worker thread. */
+    private final class Band implements Runnable {
+        int rowStart;
+        int rowEnd;
+
+        @Override
+        public void run() {
+            RuntimeException failure = null;
+            try {
+                YuvToRgbConverter.convertRows(
+                        mYBuffer,
+                        mUBuffer,
+                        mVBuffer,
+                        mWidth,
+                        mHeight,
+                        mYRowStride,
+                        mUvRowStride,
+                        mUvPixelStride,
+                        mRotation,
+                        mScale,
+                        rowStart,
+                        rowEnd,
+                        mOut);
+            } catch (RuntimeException e) {
+                failure = e;
+            } finally {
+                synchronized (mLock) {
+                    if (failure != null && mFailure == null) {
+                        mFailure = new RuntimeException("Failed to convert frame", failure);
+                    }
+                    if (--mPendingBands == 0) {
+                        mLock.notifyAll();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Converts a frame, see {@link YuvToRgbConverter#convert(ByteBuffer, ByteBuffer, ByteBuffer,
+     * int, int, int, int, int, int, int, int[])}. Blocks until the whole frame is converted.
+     *
+     * <p>Not reentrant, a converter must only be used by one thread at a time. Doesn't allocate
+     * once the worker threads are running.
+     */
+    public void convert(
+            ByteBuffer yBuffer,
+            ByteBuffer uBuffer,
+            ByteBuffer vBuffer,
+            int width,
+            int height,
+            int yRowStride,
+            int uvRowStride,
+            int uvPixelStride,
+            int rotation,
+            int scale,
+            int[] out) {
+        final int rows = height / scale;
+        final int pixels = rows * (width / scale);
+        if (mExecutor == null || pixels < mMinParallelPixels) {
+            YuvToRgbConverter.convertRows(
+                    yBuffer,
+                    uBuffer,
+                    vBuffer,
+                    width,
+                    height,
+                    yRowStride,
+                    uvRowStride,
+                    uvPixelStride,
+                    rotation,
+                    scale,
+                    0,
+                    rows,
+                    out);
+            return;
+        }
+
+        mYBuffer = yBuffer;
+        mUBuffer = uBuffer;
+        mVBuffer = vBuffer;
+        mWidth = width;
+        mHeight = height;
+        mYRowStride = yRowStride;
+        mUvRowStride = uvRowStride;
+        mUvPixelStride = uvPixelStride;
+        mRotation = rotation;
+        mScale = scale;
+        mOut = out;
+
+        final int bandRows = (rows + mThreads - 1) / mThreads;
+        synchronized (mLock) {
+            mPendingBands = mThreads - 1;
+            mFailure = null;
+        }
+        for (int i = 1; i < mThreads; i++) {
+            final Band band = mBands[i];
+            band.rowStart = Math.min(rows, i * bandRows);
+            band.rowEnd = Math.min(rows, band.rowStart + bandRows);
+            try {
+                mExecutor.execute(band);
+            } catch (RejectedExecutionException e) {
+                // Shut down, convert it here instead.
+                band.run();
+            }
+        }
+        final Band first = mBands[0];
+        first.rowStart = 0;
+        first.rowEnd = Math.min(rows, bandRows);
+        RuntimeException failure = null;
+        try {
+            YuvToRgbConverter.convertRows(
+                    yBuffer,
+                    uBuffer,
+                    vBuffer,
+                    width,
+                    height,
+                    yRowStride,
+                    uvRowStride,
+                    uvPixelStride,
+                    rotation,
+                    scale,
+                    first.rowStart,
+                    first.rowEnd,
+                    out);
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+
+        // Wait for the workers even when interrupted, they are still writing to the output.
+        boolean interrupted = false;
+        synchronized (mLock) {
+            while (mPendingBands > 0) {
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (failure == null) failure = mFailure;
+            mFailure = null;
+        }
+        mYBuffer = null;
+        mUBuffer = null;
+        mVBuffer = null;
+        mOut = null;
+        if (interrupted) Thread.currentThread().interrupt();
+        if (failure != null) throw failure;
+    }
+
+    /** Stops the worker threads. The converter must not be used afterwards. */
+    public void shutdown() {
+        if (mExecutor != null) {
+            mExecutor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright (C) 2023 LibreMobileOS Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.libremobileos.faceunlock.common;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Converts YUV_420_888 frames to ARGB_8888 by reading the {@code Image.Plane} buffers in place.
+ *
+ * <p>Produces the same pixels as {@code ImageUtils.convertYUV420ToARGB8888}, but without first
+ * copying every plane into a {@code byte[]}. Rotation and downscaling can be folded into the same
+ * pass, so the recognizer receives an upright frame at its processing size.
+ */
+public final class YuvToRgbConverter {
+
+    // This value is 2 ^ 18 - 1, and is used to clamp the RGB values before their ranges
+    // are normalized to eight bits.
+    private static final int kMaxChannelValue = 262143;
+
+    private YuvToRgbConverter() {}
+
+    /**
+     * Converts a YUV_420_888 frame to ARGB_8888.
+     *
+     * @param yBuffer Y plane buffer, as returned by {@code Image.Plane.getBuffer()}
+     * @param uBuffer U plane buffer
+     * @param vBuffer V plane buffer
+     * @param width Frame width in pixels
+     * @param height Frame height in pixels
+     * @param yRowStride Row stride of the Y plane
+     * @param uvRowStride Row stride of the U and V planes
+     * @param uvPixelStride Pixel stride of the U and V planes
+     * @param out Output array holding at least {@code width * height} pixels
+     */
+    public static void convert(
+            final ByteBuffer yBuffer,
+            final ByteBuffer uBuffer,
+            final ByteBuffer vBuffer,
+            final int width,
+            final int height,
+            final int yRowStride,
+            final int uvRowStride,
+            final int uvPixelStride,
+            final int[] out) {
+        convert(
+                yBuffer,
+                uBuffer,
+                vBuffer,
+                width,
+                height,
+                yRowStride,
+                uvRowStride,
+                uvPixelStride,
+                0,
+                1,
+                out);
+    }
+
+    /**
+     * Converts a YUV_420_888 frame to ARGB_8888, rotating and downscaling it in the same pass.
+     *
+     * <p>The output is {@link #getOutputWidth} x {@link #getOutputHeight} pixels, rotated
+     * clockwise by {@code rotation} degrees so it is upright, and subsampled by {@code scale} in
+     * both directions.
+     *
+     * @param yBuffer Y plane buffer, as returned by {@code Image.Plane.getBuffer()}
+     * @param uBuffer U plane buffer
+     * @param vBuffer V plane buffer
+     * @param width Frame width in pixels
+     * @param height Frame height in pixels
+     * @param yRowStride Row stride of the Y plane
+     * @param uvRowStride Row stride of the U and V planes
+     * @param uvPixelStride Pixel stride of the U and V planes
+     * @param rotation Clockwise rotation to apply, one of 0, 90, 180 or 270
+     * @param scale Integer downscale factor, 1 keeps the full resolution
+     * @param out Output array holding at least as many pixels as the output frame
+     */
+    public static void convert(
+            final ByteBuffer yBuffer,
+            final ByteBuffer uBuffer,
+            final ByteBuffer vBuffer,
+            final int width,
+            final int height,
+            final int yRowStride,
+            final int uvRowStride,
+            final int uvPixelStride,
+            final int rotation,
+            final int scale,
+            final int[] out) {
+        convertRows(
+                yBuffer,
+                uBuffer,
+                vBuffer,
+                width,
+                height,
+                yRowStride,
+                uvRowStride,
+                uvPixelStride,
+                rotation,
+                scale,
+                0,
+                height / scale,
+                out);
+    }
+
+    /**
+     * Same as {@link #convert(ByteBuffer, ByteBuffer, ByteBuffer, int, int, int, int, int, int,
+     * int, int[])}, but only converts the subsampled source rows {@code [rowStart, rowEnd)}.
+     * Disjoint row ranges write disjoint output pixels, so they can be converted concurrently.
+     */
+    public static void convertRows(
+            final ByteBuffer yBuffer,
+            final ByteBuffer uBuffer,
+            final ByteBuffer vBuffer,
+            final int width,
+            final int height,
+            final int yRowStride,
+            final int uvRowStride,
+            final int uvPixelStride,
+            final int rotation,
+            final int scale,
+            final int rowStart,
+            final int rowEnd,
+            final int[] out) {
+        final int srcWidth = width / scale;
+        final int srcHeight = height / scale;
+
+        for (int j = rowStart; j < rowEnd; j++) {
+            // Where the first pixel of this source row lands, and how far apart its neighbours are.
+            final int start;
+            final int step;
+            switch (rotation) {
+                case 90:
+                    start = srcHeight - 1 - j;
+                    step = srcHeight;
+                    break;
+                case 180:
+                    start = (srcHeight - j) * srcWidth - 1;
+                    step = -1;
+                    break;
+                case 270:
+                    start = (srcWidth - 1) * srcHeight + j;
+                    step = -srcHeight;
+                    break;
+                default:
+                    start = j * srcWidth;
+                    step = 1;
+                    break;
+            }
+
+            final int y = j * scale;
+            final int pY = yRowStride * y;
+            final int pUV = uvRowStride * (y >> 1);
+            int op = start;
+            for (int i = 0, x = 0; i < srcWidth; i++, x += scale) {
+                final int uvOffset = pUV + (x >> 1) * uvPixelStride;
+
+                out[op] =
+                        yuv2rgb(
+                                0xff & yBuffer.get(pY + x),
+                                0xff & uBuffer.get(uvOffset),
+                                0xff & vBuffer.get(uvOffset));
+                op += step;
+            }
+        }
+    }
+
+    /**
+     * Converts part of a YUV_420_888 frame to ARGB_8888 at full resolution, rotated like {@link
+     * #convert(ByteBuffer, ByteBuffer, ByteBuffer, int, int, int, int, int, int, int, int[])} with
+     * a scale of 1.
+     *
+     * <p>Only the pixels inside {@code [left, right) x [top, bottom)} of the rotated frame are
+     * written, at the same positions they have in a full conversion, so {@code out} is laid out
+     * with a row stride of {@link #getOutputWidth} pixels.
+     *
+     * @param left Left edge of the region in the rotated frame, inclusive
+     * @param top Top edge of the region in the rotated frame, inclusive
+     * @param right Right edge of the region in the rotated frame, exclusive
+     * @param bottom Bottom edge of the region in the rotated frame, exclusive
+     * @param out Output array holding at least as many pixels as the full output frame
+     */
+    public static void convertRegion(
+            final ByteBuffer yBuffer,
+            final ByteBuffer uBuffer,
+            final ByteBuffer vBuffer,
+            final int width,
+            final int height,
+            final int yRowStride,
+            final int uvRowStride,
+            final int uvPixelStride,
+            final int rotation,
+            final int left,
+            final int top,
+            final int right,
+            final int bottom,
+            final int[] out) {
+        final int outWidth = getOutputWidth(width, height, rotation, 1);
+        // How far the source pixel moves for each output pixel to the right.
+        final int stepX;
+        final int stepY;
+        switch (rotation) {
+            case 90:
+                stepX = 0;
+                stepY = -1;
+                break;
+            case 180:
+                stepX = -1;
+                stepY = 0;
+                break;
+            case 270:
+                stepX = 0;
+                stepY = 1;
+                break;
+            default:
+                stepX = 1;
+                stepY = 0;
+                break;
+        }
+
+        for (int oy = top; oy < bottom; oy++) {
+            // Source pixel of the first output pixel of this row.
+            int x;
+            int y;
+            switch (rotation) {
+                case 90:
+                    x = oy;
+                    y = height - 1 - left;
+                    break;
+                case 180:
+                    x = width - 1 - left;
+                    y = height - 1 - oy;
+                    break;
+                case 270:
+                    x = width - 1 - oy;
+                    y = left;
+                    break;
+                default:
+                    x = left;
+                    y = oy;
+                    break;
+            }
+
+            int op = oy * outWidth + left;
+            for (int ox = left; ox < right; ox++, x += stepX, y += stepY) {
+                final int uvOffset = uvRowStride * (y >> 1) + (x >> 1) * uvPixelStride;
+
+                out[op++] =
+                        yuv2rgb(
+                                0xff & yBuffer.get(yRowStride * y + x),
+                                0xff & uBuffer.get(uvOffset),
+                                0xff & vBuffer.get(uvOffset));
+            }
+        }
+    }
+
+    /** Width of the frame produced by converting with the given rotation and scale. */
+    public static int getOutputWidth(int width, int height, int rotation, int scale) {
+        return (rotation % 180 == 0 ? width : height) / scale;
+    }
+
+    /** Height of the frame produced by converting with the given rotation and scale. */
+    public static int getOutputHeight(int width, int height, int rotation, int scale) {
+        return (rotation % 180 == 0 ? height : width) / scale;
+    }
+
+    private static int yuv2rgb(int y, int u, int v) {
+        // Adjust and check YUV values
+        y = Math.max(y - 16, 0);
+        u -= 128;
+        v -= 128;
+
+        // This is the floating point equivalent. We do the conversion in integer
+        // because some Android devices do not have floating point in hardware.
+        // nR = (int)(1.164 * nY + 2.018 * nU);
+        // nG = (int)(1.164 * nY - 0.813 * nV - 0.391 * nU);
+        // nB = (int)(1.164 * nY + 1.596 * nV);
+        final int y1192 = 1192 * y;
+        int r = (y1192 + 1634 * v);
+        int g = (y1192 - 833 * v - 400 * u);
+        int b = (y1192 + 2066 * u);
+
+        // Clipping RGB values to be inside boundaries [ 0 , kMaxChannelValue ]
+        r = r > kMaxChannelValue ? kMaxChannelValue : (r < 0 ? 0 : r);
+        g = g > kMaxChannelValue ? kMaxChannelValue : (g < 0 ? 0 : g);
+        b = b > kMaxChannelValue ? kMaxChannelValue : (b < 0 ? 0 : b);
+
+        return 0xff000000 | ((r << 6) & 0xff0000) | ((g >> 2) & 0xff00) | ((b >> 10) & 0xff);
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2023 LibreMobileOS Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.libremobileos.faceunlock.server;
+
+import android.os.Debug;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Counts the objects each stage of the frame path allocates, for the {@code --alloc-check} dump.
+ *
+ * <p>Once started, the next frames of every stage are counted with the runtime's per thread
+ * allocation counter, after a few warm up frames that may still fill caches and pools. This only
+ * measures, no stage is allocation free: {@code Image.getPlanes()} clones its array for every
+ * frame, and the face library allocates its inputs and results whenever a model runs. Idle until
+ * started, then {@link #begin} only reads a volatile.
+ */
+/* package-private */ final class AllocationCheck {
+
+    /** {@link CameraService#onFrameAvailable}: gates and conversion. */
+    static final int FRAME = 0;
+    /** Face detection or tracking on the detection thread. */
+    static final int DETECT = 1;
+    /** Embedding, matching and reporting the result on the embedding thread. */
+    static final int EMBED = 2;
+
+    private static final String[] STAGE_NAMES = {"frame", "detect", "embed"};
+    private static final int WARMUP_FRAMES = 5;
+
+    private volatile boolean mActive = false;
+    // Guarded by this.
+    private final int[] mWarmup = new int[STAGE_NAMES.length];
+    private final int[] mRemaining = new int[STAGE_NAMES.length];
+    private final int[] mFrames = new int[STAGE_NAMES.length];
+    private final long[] mObjects = new long[STAGE_NAMES.length];
+    private final long[] mMaxObjects = new long[STAGE_NAMES.length];
+    private boolean mStarted = false;
+
+    /** Counts the allocations of the next {@code frames} frames of every stage. */
+    synchronized void start(int frames) {
+        Arrays.fill(mWarmup, WARMUP_FRAMES);
+        Arrays.fill(mRemaining, frames);
+        Arrays.fill(mFrames, 0);
+        Arrays.fill(mObjects, 0);
+        Arrays.fill(mMaxObjects, 0);
+        mStarted = true;
+        Debug.startAllocCounting();
+        mActive = true;
+    }
+
+    /** Call before a stage handles a frame, returns what to pass to {@link #end}. */
+    int begin() {
+        return mActive ? Debug.getThreadAllocCount() : -1;
+    }
+
+    /** Call after a stage handled a frame, on the same thread as {@link #begin}. */
+    void end(int stage, int begin) {
+        if (begin < 0) return;
+        final int objects = Debug.getThreadAllocCount() - begin;
+        synchronized (this) {
+            if (!mActive) return;
+            if (mWarmup[stage] > 0) {
+                mWarmup[stage]--;
+                return;
+            }
+            if (mRemaining[stage] == 0) return;
+            mRemaining[stage]--;
+            mFrames[stage]++;
+            mObjects[stage] += objects;
+            mMaxObjects[stage] = Math.max(mMaxObjects[stage], objects);
+            for (int remaining : mRemaining) {
+                if (remaining > 0) return;
+            }
+            mActive = false;
+            Debug.stopAllocCounting();
+        }
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        if (!mStarted) return;
+        pw.println("Allocations per frame" + (mActive ? " (counting):" : ":"));
+        for (int stage = 0; stage < STAGE_NAMES.length; stage++) {
+            pw.println(
+                    String.format(
+                            Locale.US,
+                            "  %-8s frames=%d objects=%d max=%d",
+                            STAGE_NAMES[stage],
+                            mFrames[stage],
+                            mObjects[stage],
+                            mMaxObjects[stage]));
+        }
+    }
+}
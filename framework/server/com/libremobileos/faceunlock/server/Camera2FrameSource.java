@@ -0,0 +1,597 @@
+/*
+ * Copyright (C) 2023 LibreMobileOS Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.libremobileos.faceunlock.server;
+
+import android.annotation.NonNull;
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+import android.util.Size;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/** Delivers frames from the front camera. */
+/* package-private */ final class Camera2FrameSource
+        implements FrameSource, ImageReader.OnImageAvailableListener {
+
+    private static final String TAG = "Camera2FrameSource";
+    private static final boolean DEBUG = FaceUnlockServer.DEBUG;
+
+    /**
+     * Frames must be at least this large on their longer side to fill the detector input, and on
+     * their shorter side not need more than 4/3 upscaling to the square the detector stretches them
+     * to. The floor of both streams, the full-size one also has to cover the desired input size.
+     */
+    private static final int MINIMUM_PREVIEW_SIZE = TrackingFaceRecognizer.DETECTOR_INPUT_SIZE;
+    private static final int MINIMUM_PREVIEW_SHORT_SIZE = MINIMUM_PREVIEW_SIZE * 3 / 4;
+
+    private final Context mContext;
+    private final LatencyStats mLatencyStats;
+    // When the camera device was requested, for the open latency.
+    private long openStartNs = 0;
+    private Handler mHandler;
+    private Listener mListener;
+    private CameraDevice cameraDevice;
+    private ImageReader previewReader;
+    private CameraCaptureSession captureSession;
+    private CaptureRequest captureRequest;
+    // Whether the session is kept warm: open, but with the repeating request stopped.
+    private volatile boolean paused = false;
+    // Camera selection and stream configuration, only touched on the handler thread.
+    private CameraProfile cameraProfile = null;
+    // Profile the open camera was configured with. Kept until it is released, even when a new
+    // camera invalidates cameraProfile while the session is warm.
+    private CameraProfile openProfile = null;
+    private Size previewSize = null;
+    private final ImageFrame frame = new ImageFrame();
+
+    private final Size desiredInputSize = new Size(640, 480);
+
+    /** The camera used for face unlock and how it is configured, see {@link #loadCameraProfile}. */
+    private static final class CameraProfile {
+        final String cameraId;
+        final int sensorOrientation;
+        final Size previewSize;
+        // Size to start with when the resolution is adaptive, may be previewSize.
+        final Size lowResolutionSize;
+        // Whether image timestamps use the elapsedRealtimeNanos time base.
+        final boolean realtimeTimestamps;
+        // Cameras present when the profile was computed.
+        final Set<String> knownCameraIds;
+
+        CameraProfile(
+                String cameraId,
+                int sensorOrientation,
+                Size previewSize,
+                Size lowResolutionSize,
+                boolean realtimeTimestamps,
+                Set<String> knownCameraIds) {
+            this.cameraId = cameraId;
+            this.sensorOrientation = sensorOrientation;
+            this.previewSize = previewSize;
+            this.lowResolutionSize = lowResolutionSize;
+            this.realtimeTimestamps = realtimeTimestamps;
+            this.knownCameraIds = knownCameraIds;
+        }
+    }
+
+    /** Exposes the planes of a camera image, closing the image when the frame is closed. */
+    private static final class ImageFrame extends YuvFrame {
+        private Image image;
+
+        void set(Image image, boolean realtimeTimestamp) {
+            this.image = image;
+            final Image.Plane[] planes = image.getPlanes();
+            width = image.getWidth();
+            height = image.getHeight();
+            yBuffer = planes[0].getBuffer();
+            uBuffer = planes[1].getBuffer();
+            vBuffer = planes[2].getBuffer();
+            yRowStride = planes[0].getRowStride();
+            uvRowStride = planes[1].getRowStride();
+            uvPixelStride = planes[1].getPixelStride();
+            // Fall back to the arrival time when the sensor uses a different clock.
+            timestampNs =
+                    realtimeTimestamp ? image.getTimestamp() : SystemClock.elapsedRealtimeNanos();
+        }
+
+        @Override
+        void close() {
+            if (image != null) {
+                image.close();
+                image = null;
+            }
+            yBuffer = null;
+            uBuffer = null;
+            vBuffer = null;
+        }
+    }
+
+    Camera2FrameSource(Context context, LatencyStats latencyStats) {
+        mContext = context;
+        mLatencyStats = latencyStats;
+    }
+
+    private final CameraDevice.StateCallback stateCallback =
+            new CameraDevice.StateCallback() {
+                @Override
+                public void onOpened(CameraDevice camera) {
+                    // This is called when the camera is open
+                    if (DEBUG) Log.d(TAG, "onOpened");
+                    if (previewSize == null) {
+                        // Released while the camera was opening.
+                        camera.close();
+                        return;
+                    }
+                    cameraDevice = camera;
+                    mLatencyStats.record(
+                            LatencyStats.CAMERA_OPEN,
+                            SystemClock.elapsedRealtimeNanos() - openStartNs);
+                    createCameraPreview();
+                }
+
+                @Override
+                public void onDisconnected(CameraDevice camera) {
+                    if (DEBUG) Log.d(TAG, "onDisconnected");
+                    // Can happen while the session is kept warm and someone else takes the camera.
+                    release();
+                }
+
+                @Override
+                public void onError(CameraDevice camera, int error) {
+                    Log.w(TAG, "onError error=" + error);
+                    release();
+                }
+            };
+
+    @Override
+    public void start(Handler handler, Listener listener) {
+        mHandler = handler;
+        mListener = listener;
+        // Select the camera now, so unlock attempts can open it right away.
+        loadCameraProfile();
+        getCameraManager().registerAvailabilityCallback(availabilityCallback, mHandler);
+    }
+
+    @Override
+    public void shutdown() {
+        getCameraManager().unregisterAvailabilityCallback(availabilityCallback);
+        release();
+        mHandler = null;
+        mListener = null;
+    }
+
+    private void createCameraPreview() {
+        if (DEBUG) Log.d(TAG, "createCameraPreview");
+        try {
+            if (previewSize == null) {
+                Log.e(TAG, "previewSize == null, should not happen, possibly race condition?");
+                release();
+                return;
+            }
+
+            final ImageReader reader =
+                    ImageReader.newInstance(
+                            previewSize.getWidth(),
+                            previewSize.getHeight(),
+                            ImageFormat.YUV_420_888,
+                            2);
+            previewReader = reader;
+
+            reader.setOnImageAvailableListener(this, mHandler);
+            final CaptureRequest.Builder captureRequestBuilder =
+                    cameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+            captureRequestBuilder.addTarget(reader.getSurface());
+
+            cameraDevice.createCaptureSession(
+                    Collections.singletonList(reader.getSurface()),
+                    new CameraCaptureSession.StateCallback() {
+                        @Override
+                        public void onConfigured(
+                                @NonNull CameraCaptureSession cameraCaptureSession) {
+                            // The camera is already closed
+                            if (null == cameraDevice) {
+                                return;
+                            }
+                            // When the session is ready, we start displaying the preview.
+                            try {
+                                // Auto focus should be continuous for camera preview.
+                                captureRequestBuilder.set(
+                                        CaptureRequest.CONTROL_AF_MODE,
+                                        CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
+                                // Flash is automatically enabled when necessary.
+                                captureRequestBuilder.set(
+                                        CaptureRequest.CONTROL_AE_MODE,
+                                        CaptureRequest.CONTROL_AE_MODE_ON_AUTO_FLASH);
+
+                                // Finally, we start displaying the camera preview.
+                                captureSession = cameraCaptureSession;
+                                captureRequest = captureRequestBuilder.build();
+                                cameraCaptureSession.setRepeatingRequest(
+                                        captureRequest, null, mHandler);
+                            } catch (final CameraAccessException e) {
+                                Log.e(TAG, "Exception!", e);
+                            }
+                        }
+
+                        @Override
+                        public void onConfigureFailed(
+                                @NonNull CameraCaptureSession cameraCaptureSession) {}
+
+                        @Override
+                        public void onClosed(@NonNull CameraCaptureSession cameraCaptureSession) {
+                            // Only now the camera is done writing to the reader's surface.
+                            reader.close();
+                        }
+                    },
+                    null);
+        } catch (CameraAccessException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /** Compares two {@code Size}s based on their areas. */
+    private static class CompareSizesByArea implements Comparator<Size> {
+        @Override
+        public int compare(final Size lhs, final Size rhs) {
+            // We cast here to ensure the multiplications won't overflow
+            return Long.signum(
+                    (long) lhs.getWidth() * lhs.getHeight()
+                            - (long) rhs.getWidth() * rhs.getHeight());
+        }
+    }
+
+    /**
+     * Given {@code choices} of {@code Size}s supported by a camera, chooses the smallest one whose
+     * width and height are at least as large as the minimum of both and that fills the detector
+     * input, or an exact match if possible.
+     *
+     * @param choices The list of sizes that the camera supports for the intended output class
+     * @param width The minimum desired width
+     * @param height The minimum desired height
+     * @return The optimal {@code Size}, or an arbitrary one if none were big enough
+     */
+    private static Size chooseOptimalSize(final Size[] choices, final int width, final int height) {
+        final int minSize = Math.min(width, height);
+        final Size desiredSize = new Size(width, height);
+
+        // Collect the supported resolutions that are at least as big as the preview Surface
+        boolean exactSizeFound = false;
+        final List<Size> bigEnough = new ArrayList<>();
+        final List<Size> tooSmall = new ArrayList<>();
+        for (final Size option : choices) {
+            if (option.equals(desiredSize)) {
+                // Set the size but don't return yet so that remaining sizes will still be logged.
+                exactSizeFound = true;
+            }
+
+            if (option.getHeight() >= minSize
+                    && option.getWidth() >= minSize
+                    && fillsDetector(option)) {
+                bigEnough.add(option);
+            } else {
+                tooSmall.add(option);
+            }
+        }
+
+        Log.i(
+                TAG,
+                "Desired size: "
+                        + desiredSize
+                        + ", min size: "
+                        + minSize
+                        + "x"
+                        + minSize
+                        + ", detector input: "
+                        + MINIMUM_PREVIEW_SIZE);
+        Log.i(TAG, "Valid preview sizes: [" + TextUtils.join(", ", bigEnough) + "]");
+        Log.i(TAG, "Rejected preview sizes: [" + TextUtils.join(", ", tooSmall) + "]");
+
+        if (exactSizeFound) {
+            Log.i(TAG, "Exact size match found.");
+            return desiredSize;
+        }
+
+        // Pick the smallest of those, assuming we found any
+        if (bigEnough.size() > 0) {
+            final Size chosenSize = Collections.min(bigEnough, new CompareSizesByArea());
+            Log.i(TAG, "Chosen size: " + chosenSize.getWidth() + "x" + chosenSize.getHeight());
+            return chosenSize;
+        } else {
+            Log.e(TAG, "Couldn't find any suitable preview size");
+            return choices[0];
+        }
+    }
+
+    /** Whether frames of the size fill the detector input, see {@link #MINIMUM_PREVIEW_SIZE}. */
+    private static boolean fillsDetector(final Size size) {
+        return Math.max(size.getWidth(), size.getHeight()) >= MINIMUM_PREVIEW_SIZE
+                && Math.min(size.getWidth(), size.getHeight()) >= MINIMUM_PREVIEW_SHORT_SIZE;
+    }
+
+    /**
+     * Chooses the smallest of {@code choices} that fills the detector input, see {@link
+     * #MINIMUM_PREVIEW_SIZE}. Of equally large ones, the one closest to the detector's square is
+     * preferred, as it is stretched the least.
+     *
+     * @return The size, or null if none is large enough
+     */
+    private static Size chooseDetectionSize(final Size[] choices) {
+        Size best = null;
+        for (final Size option : choices) {
+            if (!fillsDetector(option)) continue;
+            final int longSide = Math.max(option.getWidth(), option.getHeight());
+            final int shortSide = Math.min(option.getWidth(), option.getHeight());
+            final int byArea = best == null ? -1 : new CompareSizesByArea().compare(option, best);
+            if (byArea < 0
+                    || (byArea == 0
+                            && (long) longSide * Math.min(best.getWidth(), best.getHeight())
+                                    < (long) Math.max(best.getWidth(), best.getHeight())
+                                            * shortSide)) {
+                best = option;
+            }
+        }
+        return best;
+    }
+
+    @Override
+    public void open(boolean lowResolution) {
+        // A warm session keeps its size, escalated or not.
+        if (resumeCamera()) return;
+        if (previewSize != null) {
+            Log.e(TAG, "camera already open");
+            return;
+        }
+        final CameraProfile profile = loadCameraProfile();
+        if (profile == null) return;
+        try {
+            openProfile = profile;
+            previewSize = lowResolution ? profile.lowResolutionSize : profile.previewSize;
+            mListener.onOpened(previewSize, profile.sensorOrientation);
+            openStartNs = SystemClock.elapsedRealtimeNanos();
+            getCameraManager().openCamera(profile.cameraId, stateCallback, mHandler);
+        } catch (CameraAccessException | SecurityException e) {
+            e.printStackTrace();
+            // The camera may be gone, select one again next time.
+            cameraProfile = null;
+            release();
+        }
+    }
+
+    private CameraManager getCameraManager() {
+        return (CameraManager) mContext.getSystemService(Context.CAMERA_SERVICE);
+    }
+
+    /**
+     * Returns the cached camera profile, selecting the front camera and its preview size first if
+     * there is none.
+     */
+    private CameraProfile loadCameraProfile() {
+        if (cameraProfile != null) return cameraProfile;
+        CameraManager manager = getCameraManager();
+        try {
+            final String[] cameraIds = manager.getCameraIdList();
+            String cameraId = cameraIds[0];
+            for (String id : cameraIds) {
+                CameraCharacteristics characteristics = manager.getCameraCharacteristics(id);
+                if (characteristics.get(CameraCharacteristics.LENS_FACING)
+                        == CameraCharacteristics.LENS_FACING_FRONT) {
+                    cameraId = id;
+                    break;
+                }
+            }
+            CameraCharacteristics characteristics = manager.getCameraCharacteristics(cameraId);
+            StreamConfigurationMap map =
+                    characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+
+            assert map != null;
+
+            // Danger, W.R.! Attempting to use too large a preview size could  exceed the camera
+            // bus' bandwidth limitation, resulting in gorgeous previews but the storage of
+            // garbage capture data.
+            // Frames only go to the ImageReader, so only its sizes matter.
+            final Size[] choices = map.getOutputSizes(ImageFormat.YUV_420_888);
+            final Size size =
+                    chooseOptimalSize(
+                            choices, desiredInputSize.getWidth(), desiredInputSize.getHeight());
+            final Size smallest = chooseDetectionSize(choices);
+            final Size lowResolutionSize =
+                    smallest != null
+                                    && new CompareSizesByArea().compare(smallest, size) < 0
+                            ? smallest
+                            : size;
+            cameraProfile =
+                    new CameraProfile(
+                            cameraId,
+                            characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION),
+                            size,
+                            lowResolutionSize,
+                            characteristics.get(CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE)
+                                    == CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME,
+                            new HashSet<>(Arrays.asList(cameraIds)));
+            if (DEBUG) {
+                Log.d(
+                        TAG,
+                        "selected camera "
+                                + cameraId
+                                + " at "
+                                + size
+                                + ", low resolution "
+                                + lowResolutionSize);
+            }
+        } catch (CameraAccessException | IndexOutOfBoundsException e) {
+            Log.e(TAG, "Failed to select camera", e);
+        }
+        return cameraProfile;
+    }
+
+    private final CameraManager.AvailabilityCallback availabilityCallback =
+            new CameraManager.AvailabilityCallback() {
+                @Override
+                public void onCameraAvailable(@NonNull String cameraId) {
+                    // Registering reports every present camera, only react to new ones, which
+                    // might be a better choice than the cached one.
+                    final CameraProfile profile = cameraProfile;
+                    if (profile != null && !profile.knownCameraIds.contains(cameraId)) {
+                        if (DEBUG) Log.d(TAG, "camera " + cameraId + " added, reselecting");
+                        cameraProfile = null;
+                    }
+                }
+            };
+
+    @Override
+    public boolean isOpen() {
+        return cameraDevice != null && !paused;
+    }
+
+    /**
+     * Restarts streaming on a session kept warm by {@link #pause}.
+     *
+     * @return false if there is no warm session and the camera has to be opened
+     */
+    private boolean resumeCamera() {
+        mHandler.removeCallbacks(mReleaseRunnable);
+        if (!paused) return false;
+        paused = false;
+        final CameraProfile profile = openProfile;
+        if (captureSession == null || captureRequest == null || profile == null) {
+            release();
+            return false;
+        }
+        if (DEBUG) Log.d(TAG, "resuming warm camera session");
+        try {
+            mListener.onOpened(previewSize, profile.sensorOrientation);
+            captureSession.setRepeatingRequest(captureRequest, null, mHandler);
+            return true;
+        } catch (CameraAccessException | RuntimeException e) {
+            // Including a session closed meanwhile, fall back to opening the camera again.
+            Log.w(TAG, "Failed to resume warm camera session", e);
+            release();
+            return false;
+        }
+    }
+
+    @Override
+    public boolean escalate() {
+        final CameraProfile profile = openProfile;
+        if (cameraDevice == null
+                || captureSession == null
+                || paused
+                || profile == null
+                || profile.previewSize.equals(previewSize)) {
+            return false;
+        }
+        if (DEBUG) Log.d(TAG, "escalating from " + previewSize + " to " + profile.previewSize);
+        // Creating the new session closes the current one once the camera is done with it, which
+        // closes its reader in onClosed. Until then, don't deliver frames of the old size.
+        previewReader.setOnImageAvailableListener(null, null);
+        captureSession = null;
+        captureRequest = null;
+        previewReader = null;
+        previewSize = profile.previewSize;
+        mListener.onResized(previewSize);
+        createCameraPreview();
+        return true;
+    }
+
+    private final Runnable mReleaseRunnable = this::release;
+
+    @Override
+    public void pause(long keepWarmMs) {
+        if (keepWarmMs <= 0) {
+            release();
+            return;
+        }
+        if (captureSession == null || paused) {
+            // Nothing to keep warm, the camera didn't finish opening yet.
+            if (!paused) release();
+            return;
+        }
+        try {
+            captureSession.stopRepeating();
+        } catch (CameraAccessException | IllegalStateException e) {
+            Log.w(TAG, "Failed to pause camera session", e);
+            release();
+            return;
+        }
+        paused = true;
+        if (DEBUG) Log.d(TAG, "Camera paused");
+        mHandler.postDelayed(mReleaseRunnable, keepWarmMs);
+    }
+
+    @Override
+    public void release() {
+        if (DEBUG) Log.d(TAG, "release");
+        paused = false;
+        if (mHandler != null) {
+            mHandler.removeCallbacks(mReleaseRunnable);
+        }
+        captureSession = null;
+        captureRequest = null;
+        previewSize = null;
+        openProfile = null;
+        if (null != previewReader) {
+            previewReader.close();
+            previewReader = null;
+        }
+        if (null != cameraDevice) {
+            cameraDevice.close();
+            cameraDevice = null;
+            Log.i(TAG, "Camera closed");
+        }
+        if (mListener != null) {
+            mListener.onReleased();
+        }
+    }
+
+    @Override
+    public void onImageAvailable(ImageReader reader) {
+        try {
+            // Always take the image, so the camera never runs out of buffers while we are busy.
+            final Image image = reader.acquireLatestImage();
+            if (image == null) {
+                if (DEBUG) Log.d(TAG, "image is null");
+                return;
+            }
+            final CameraProfile profile = openProfile;
+            frame.set(image, profile != null && profile.realtimeTimestamps);
+            mListener.onFrameAvailable(frame);
+        } catch (final Exception e) {
+            Log.e(TAG, "Exception!", e);
+        } finally {
+            frame.close();
+        }
+    }
+}
@@ -16,64 +16,125 @@
 
 package com.libremobileos.faceunlock.server;
 
-import android.annotation.NonNull;
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.ImageFormat;
-import android.graphics.SurfaceTexture;
-import android.hardware.camera2.CameraAccessException;
-import android.hardware.camera2.CameraCaptureSession;
-import android.hardware.camera2.CameraCharacteristics;
-import android.hardware.camera2.CameraDevice;
-import android.hardware.camera2.CameraManager;
-import android.hardware.camera2.CaptureRequest;
-import android.hardware.camera2.params.StreamConfigurationMap;
-import android.media.Image;
-import android.media.ImageReader;
+import android.graphics.RectF;
+import android.hardware.biometrics.face.V1_0.FaceAcquiredInfo;
 import android.os.Handler;
 import android.os.HandlerThread;
-import android.text.TextUtils;
+import android.os.SystemClock;
+import android.os.SystemProperties;
+import android.os.Trace;
 import android.util.Log;
 import android.util.Size;
 import android.view.Display;
 import android.view.OrientationEventListener;
 
-import com.libremobileos.yifan.face.ImageUtils;
+import com.libremobileos.faceunlock.common.ParallelYuvToRgbConverter;
+import com.libremobileos.faceunlock.common.YuvToRgbConverter;
 
+import java.io.PrintWriter;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.List;
+import java.util.ArrayDeque;
+import java.util.concurrent.ArrayBlockingQueue;
 
-public class CameraService implements ImageReader.OnImageAvailableListener {
+public class CameraService implements FrameSource.Listener {
 
     private static final String TAG = "Camera2Service";
     private static final boolean DEBUG = FaceUnlockServer.DEBUG;
 
     /**
-     * The camera preview size will be chosen to be the smallest frame by pixel size capable of
-     * containing a DESIRED_SIZE x DESIRED_SIZE square.
+     * Frames are downscaled by the largest integer factor that keeps their longer side at or above
+     * the detector input before they are handed to the recognizer. The detector stretches frames
+     * to a square, anything larger would be thrown away by it again.
      */
-    private static final int MINIMUM_PREVIEW_SIZE = 320;
+    private static final int MINIMUM_PROCESSING_SIZE = TrackingFaceRecognizer.DETECTOR_INPUT_SIZE;
+
+    /**
+     * Number of converted frames in the pipeline: one in detection, one in embedding and one
+     * waiting for either, so each stage can start on a fresh frame as soon as it is done with the
+     * previous one. Frames own their pixels, camera images are returned as soon as they are
+     * converted.
+     */
+    private static final int FRAME_BUFFERS = 3;
+
+    /**
+     * Margin around the face converted at full resolution for embedding, as a fraction of the
+     * longer side of the face box, so the scanner crop stays inside it.
+     */
+    private static final float EMBED_CROP_MARGIN = 0.25f;
+    /**
+     * How far a face may move until the next frame, as a fraction of the longer side of its box.
+     * Only the camera rows this far around the last face are kept at full resolution.
+     */
+    private static final float FACE_ROWS_SLACK = 0.5f;
+    private static final long NO_FACE_ROWS = -1;
+
+    /** Detected frames waiting for embedding, newer ones replace older ones beyond this. */
+    private static final int EMBED_QUEUE_SIZE = 1;
+
+    /**
+     * With adaptive resolution, faces smaller than this many pixels or blurrier than {@link
+     * #MIN_FACE_SHARPNESS} in this many consecutive detections switch to larger frames. Crops
+     * much smaller than the embedding input lose too much detail when scaled up to it. The size is
+     * of the crop the embedding gets, at full resolution even when detection ran on a smaller
+     * frame.
+     */
+    private static final int MIN_FACE_SIZE = TrackingFaceRecognizer.SCANNER_INPUT_SIZE * 3 / 4;
+    private static final float MIN_FACE_SHARPNESS = 3f;
+    private static final int ESCALATE_AFTER_FRAMES = 3;
+    // Frame size from which conversion is split across threads. Unset, conversion stays on one
+    // thread. Set it to what the --convert-bench dump measures on the device.
+    private static final String PROP_MIN_PARALLEL_PIXELS = "persist.faceunlock.min_parallel_pixels";
 
     private Handler mBackgroundHandler;
     private HandlerThread mBackgroundThread;
-    private CameraDevice cameraDevice;
-    private ImageReader previewReader;
-    private byte[][] yuvBytes = null;
-    private int[] rgbBytes = null;
-    private boolean isProcessingFrame = false;
-    private int yRowStride;
-    private Runnable postInferenceCallback;
-    private Runnable imageConverter;
-    private Bitmap rgbFrameBitmap = null;
+    private Handler mDetectionHandler;
+    private HandlerThread mDetectionThread;
+    private Handler mEmbeddingHandler;
+    private HandlerThread mEmbeddingThread;
+    private final FrameSource mFrameSource;
+    // Whether frames should currently be processed.
+    private volatile boolean streaming = false;
+    private long warmSessionTimeoutMs = 0;
+    private volatile long staleFrameBudgetNs = 0;
+    private volatile boolean adaptiveResolution = false;
+    // Whether the frames are converted at full size, after escalating.
+    private volatile boolean fullResolution = false;
+    // Consecutive detections with too little detail, only touched on the detection thread.
+    private int lowDetailFrames = 0;
+    // Source rows around the last detected face, top in the upper and bottom in the lower half, or
+    // NO_FACE_ROWS. Written on the detection thread, read when the next frames are converted.
+    private volatile long faceRows = NO_FACE_ROWS;
+    private final int minParallelPixels =
+            SystemProperties.getInt(
+                    PROP_MIN_PARALLEL_PIXELS, ParallelYuvToRgbConverter.MIN_PARALLEL_PIXELS);
+    private final ParallelYuvToRgbConverter converter =
+            new ParallelYuvToRgbConverter(
+                    ParallelYuvToRgbConverter.defaultThreads(), minParallelPixels);
+    private final Object mFrameLock = new Object();
+    private final ArrayDeque<Frame> freeFrames = new ArrayDeque<>();
+    private Frame pendingFrame = null;
+    private final ArrayBlockingQueue<Frame> embedQueue = new ArrayBlockingQueue<>(EMBED_QUEUE_SIZE);
+    private volatile boolean detecting = false;
+    private volatile boolean embedding = false;
+    private int frameGeneration = 0;
+    // Keeps frame buffers across sessions.
+    private final FrameBufferPool bufferPool = new FrameBufferPool();
+    private final FrameStats frameStats = new FrameStats();
+    private final FrameQualityGate qualityGate = new FrameQualityGate();
+    private final MotionGate motionGate = new MotionGate();
+    private final AllocationCheck allocationCheck = new AllocationCheck();
+    private final LatencyStats mLatencyStats;
+    // When openCamera was last called, for the first frame latency.
+    private volatile long openRequestTimeNs = 0;
+    private volatile boolean awaitingFirstFrame = false;
     private Size previewSize = null;
-    private Size rotatedSize = null;
+    private Size processingSize = null;
+    private int processingScale = 1;
     private final Context mContext;
     private final CameraCallback mCallback;
 
-    protected final Size desiredInputSize = new Size(640, 480);
     // The calculated actual processing width & height
     protected int imageOrientation;
     private int sensorOrientation = 0;
@@ -83,16 +144,114 @@ public class CameraService implements ImageReader.OnImageAvailableListener {
     private static final int ORIENTATION_HYSTERESIS = 5;
 
     public interface CameraCallback {
+        /**
+         * {@link #detectFace} didn't run the detector: not authenticating, no recognizer yet, or a
+         * frame of another size.
+         */
+        int DETECTION_SKIPPED = 0;
+        /** {@link #detectFace} ran the detector, but didn't find exactly one face. */
+        int DETECTION_NO_FACE = 1;
+        /** {@link #detectFace} found one face, the frame goes on to {@link #recognizeFace}. */
+        int DETECTION_FACE = 2;
+
         void setupFaceRecognizer(Size bitmapSize, int rotation);
 
-        void processImage(Size previewSize, Size rotatedSize, Bitmap rgbBitmap, int rotation);
+        /**
+         * First stage of the recognizer, finds the face in a frame. Called on the detection thread.
+         *
+         * @param detection Filled with the face found, passed on to {@link #recognizeFace}
+         * @param timestampNs Capture time of the frame, in the {@code
+         *     SystemClock.elapsedRealtimeNanos} time base
+         * @return {@link #DETECTION_SKIPPED}, {@link #DETECTION_NO_FACE} or {@link
+         *     #DETECTION_FACE}
+         */
+        int detectFace(
+                Bitmap rgbBitmap, TrackingFaceRecognizer.Detection detection, long timestampNs);
+
+        /**
+         * Second stage of the recognizer, embeds and matches the face found by {@link
+         * #detectFace}. Called on the embedding thread, possibly while the next frame is in
+         * detection.
+         *
+         * @param timestampNs Capture time of the frame, in the {@code
+         *     SystemClock.elapsedRealtimeNanos} time base
+         */
+        void recognizeFace(
+                Bitmap rgbBitmap, TrackingFaceRecognizer.Detection detection, long timestampNs);
+
+        /**
+         * Called for the first frame after {@link #openCamera}, before it is checked or converted.
+         *
+         * @param timestampNs Capture time of the frame, in the {@code
+         *     SystemClock.elapsedRealtimeNanos} time base
+         */
+        void onFirstFrame(long timestampNs);
+
+        /**
+         * Called instead of {@link #detectFace} for frames not worth running the recognizer on.
+         *
+         * @param acquiredInfo The {@code FaceAcquiredInfo} describing what is wrong with the frame
+         */
+        void onFrameRejected(int acquiredInfo);
 
         void stop();
     }
 
+    /** A converted frame, owned by the pipeline while it waits for or is in inference. */
+    private static final class Frame {
+        final int generation;
+        final TrackingFaceRecognizer.Detection detection = new TrackingFaceRecognizer.Detection();
+        Bitmap bitmap;
+        int[] pixels;
+        long timestampNs;
+        // When detection finished, for the time spent waiting for embedding.
+        long detectedNs;
+        // The frame as the motion gate saw it, the reference for later frames once detected.
+        final MotionGate.Sample motionSample = new MotionGate.Sample();
+        // Downscale and rotation the bitmap was converted with.
+        int scale;
+        int rotation;
+        // With a scale above 1, the full resolution rows around the last face are kept so embedding
+        // can crop the face from faceBitmap, which only has the pixels around it converted. The
+        // plane buffers are full size, but only source rows [planeTop, planeBottom) are current.
+        ByteBuffer yPlane;
+        ByteBuffer uPlane;
+        ByteBuffer vPlane;
+        int planeTop;
+        int planeBottom;
+        int width;
+        int height;
+        int yRowStride;
+        int uvRowStride;
+        int uvPixelStride;
+        Bitmap faceBitmap;
+        int[] facePixels;
+
+        Frame(int generation) {
+            this.generation = generation;
+        }
+    }
+
     public CameraService(Context context, CameraCallback callback) {
+        this(context, callback, new LatencyStats());
+    }
+
+    /* package-private */ CameraService(
+            Context context, CameraCallback callback, LatencyStats latencyStats) {
+        this(context, callback, latencyStats, new Camera2FrameSource(context, latencyStats));
+    }
+
+    /* package-private */ CameraService(
+            Context context,
+            CameraCallback callback,
+            LatencyStats latencyStats,
+            FrameSource frameSource) {
         mContext = context;
         mCallback = callback;
+        mLatencyStats = latencyStats;
+        mFrameSource = frameSource;
+        mContext.registerComponentCallbacks(bufferPool);
+        resetFrames();
         setupOrientationListener();
     }
 
@@ -130,51 +289,55 @@ public class CameraService implements ImageReader.OnImageAvailableListener {
         handler.post(
             () -> {
                 imageOrientation = (sensorOrientation - currentOrientation + 360) % 360;
-                if (imageOrientation % 180 != 0) {
-                    rotatedSize = new Size(size.getHeight(), size.getWidth());
-                } else {
-                    rotatedSize = new Size(size.getWidth(), size.getHeight());
-                }
+                // Frames are rotated and scaled while converting, so the recognizer gets an
+                // upright bitmap at processing size and doesn't have to transform it again.
+                // Escalated frames keep all their detail.
+                processingScale =
+                        fullResolution && adaptiveResolution
+                                ? 1
+                                : Math.max(
+                                        1,
+                                        Math.max(size.getWidth(), size.getHeight())
+                                                / MINIMUM_PROCESSING_SIZE);
+                processingSize =
+                        new Size(
+                                YuvToRgbConverter.getOutputWidth(
+                                        size.getWidth(),
+                                        size.getHeight(),
+                                        imageOrientation,
+                                        processingScale),
+                                YuvToRgbConverter.getOutputHeight(
+                                        size.getWidth(),
+                                        size.getHeight(),
+                                        imageOrientation,
+                                        processingScale));
                 if (DEBUG) Log.d(TAG, "setting up face recognizer");
-                mCallback.setupFaceRecognizer(rotatedSize, imageOrientation);
+                mCallback.setupFaceRecognizer(processingSize, 0);
                 if (DEBUG) Log.d(TAG, "done setting up face recognizer, opening camera");
             }
         );
     }
 
-    private final CameraDevice.StateCallback stateCallback =
-            new CameraDevice.StateCallback() {
-                @Override
-                public void onOpened(CameraDevice camera) {
-                    // This is called when the camera is open
-                    if (DEBUG) Log.d(TAG, "onOpened");
-                    cameraDevice = camera;
-                    createCameraPreview();
-                }
-
-                @Override
-                public void onDisconnected(CameraDevice camera) {
-                    if (DEBUG) Log.d(TAG, "onDisconnected");
-                    stopBackgroundThread();
-                }
-
-                @Override
-                public void onError(CameraDevice camera, int error) {
-                    Log.w(TAG, "onError error=" + error);
-                    stopBackgroundThread();
-                }
-            };
-
     public void startBackgroundThread() {
         if (DEBUG) Log.d(TAG, "startBackgroundThread");
         mBackgroundThread = new HandlerThread("Camera Background");
         mBackgroundThread.start();
         mBackgroundHandler = new Handler(mBackgroundThread.getLooper());
+        mDetectionThread = new HandlerThread("Face Detection");
+        mDetectionThread.start();
+        mDetectionHandler = new Handler(mDetectionThread.getLooper());
+        mEmbeddingThread = new HandlerThread("Face Embedding");
+        mEmbeddingThread.start();
+        mEmbeddingHandler = new Handler(mEmbeddingThread.getLooper());
+
+        final Handler handler = mBackgroundHandler;
+        handler.post(() -> mFrameSource.start(handler, this));
     }
 
     public void stopBackgroundThread() {
         if (DEBUG) Log.d(TAG, "stopBackgroundThread");
-        closeCamera();
+        streaming = false;
+        mBackgroundHandler.post(mFrameSource::shutdown);
 
         mBackgroundThread.quitSafely();
         try {
@@ -184,310 +347,636 @@ public class CameraService implements ImageReader.OnImageAvailableListener {
         }
         mBackgroundThread = null;
         mBackgroundHandler = null;
-    }
 
-    private void createCameraPreview() {
-        if (DEBUG) Log.d(TAG, "createCameraPreview");
+        // Detection hands frames to embedding, so it has to stop first.
+        mDetectionThread.quitSafely();
         try {
-            if (previewSize == null) {
-                Log.e(TAG, "previewSize == null, should not happen, possibly race condition?");
-                stopBackgroundThread();
-                return;
-            }
-
-            previewReader =
-                    ImageReader.newInstance(
-                            previewSize.getWidth(),
-                            previewSize.getHeight(),
-                            ImageFormat.YUV_420_888,
-                            2);
-
-            previewReader.setOnImageAvailableListener(this, mBackgroundHandler);
-            final CaptureRequest.Builder captureRequestBuilder =
-                    cameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
-            captureRequestBuilder.addTarget(previewReader.getSurface());
-
-            cameraDevice.createCaptureSession(
-                    Collections.singletonList(previewReader.getSurface()),
-                    new CameraCaptureSession.StateCallback() {
-                        @Override
-                        public void onConfigured(
-                                @NonNull CameraCaptureSession cameraCaptureSession) {
-                            // The camera is already closed
-                            if (null == cameraDevice) {
-                                return;
-                            }
-                            // When the session is ready, we start displaying the preview.
-                            try {
-                                // Auto focus should be continuous for camera preview.
-                                captureRequestBuilder.set(
-                                        CaptureRequest.CONTROL_AF_MODE,
-                                        CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
-                                // Flash is automatically enabled when necessary.
-                                captureRequestBuilder.set(
-                                        CaptureRequest.CONTROL_AE_MODE,
-                                        CaptureRequest.CONTROL_AE_MODE_ON_AUTO_FLASH);
-
-                                // Finally, we start displaying the camera preview.
-                                cameraCaptureSession.setRepeatingRequest(
-                                        captureRequestBuilder.build(), null, mBackgroundHandler);
-                            } catch (final CameraAccessException e) {
-                                Log.e(TAG, "Exception!", e);
-                            }
-                        }
-
-                        @Override
-                        public void onConfigureFailed(
-                                @NonNull CameraCaptureSession cameraCaptureSession) {}
-                    },
-                    null);
-        } catch (CameraAccessException e) {
+            mDetectionThread.join();
+        } catch (InterruptedException e) {
             e.printStackTrace();
         }
-    }
+        mDetectionThread = null;
+        mDetectionHandler = null;
 
-    /** Compares two {@code Size}s based on their areas. */
-    private static class CompareSizesByArea implements Comparator<Size> {
-        @Override
-        public int compare(final Size lhs, final Size rhs) {
-            // We cast here to ensure the multiplications won't overflow
-            return Long.signum(
-                    (long) lhs.getWidth() * lhs.getHeight()
-                            - (long) rhs.getWidth() * rhs.getHeight());
+        mEmbeddingThread.quitSafely();
+        try {
+            mEmbeddingThread.join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
         }
+        mEmbeddingThread = null;
+        mEmbeddingHandler = null;
     }
 
     /**
-     * Given {@code choices} of {@code Size}s supported by a camera, chooses the smallest one whose
-     * width and height are at least as large as the minimum of both, or an exact match if possible.
-     *
-     * @param choices The list of sizes that the camera supports for the intended output class
-     * @param width The minimum desired width
-     * @param height The minimum desired height
-     * @return The optimal {@code Size}, or an arbitrary one if none were big enough
+     * Sets how long {@link #closeCamera} keeps the capture session open with streaming stopped, so
+     * a following {@link #openCamera} only has to restart the repeating request. 0 closes the
+     * camera right away.
      */
-    private static Size chooseOptimalSize(final Size[] choices, final int width, final int height) {
-        final int minSize = Math.max(Math.min(width, height), MINIMUM_PREVIEW_SIZE);
-        final Size desiredSize = new Size(width, height);
-
-        // Collect the supported resolutions that are at least as big as the preview Surface
-        boolean exactSizeFound = false;
-        final List<Size> bigEnough = new ArrayList<>();
-        final List<Size> tooSmall = new ArrayList<>();
-        for (final Size option : choices) {
-            if (option.equals(desiredSize)) {
-                // Set the size but don't return yet so that remaining sizes will still be logged.
-                exactSizeFound = true;
-            }
-
-            if (option.getHeight() >= minSize && option.getWidth() >= minSize) {
-                bigEnough.add(option);
-            } else {
-                tooSmall.add(option);
-            }
-        }
-
-        Log.i(TAG, "Desired size: " + desiredSize + ", min size: " + minSize + "x" + minSize);
-        Log.i(TAG, "Valid preview sizes: [" + TextUtils.join(", ", bigEnough) + "]");
-        Log.i(TAG, "Rejected preview sizes: [" + TextUtils.join(", ", tooSmall) + "]");
+    public void setWarmSessionTimeout(long timeoutMs) {
+        warmSessionTimeoutMs = timeoutMs;
+    }
 
-        if (exactSizeFound) {
-            Log.i(TAG, "Exact size match found.");
-            return desiredSize;
-        }
+    /**
+     * Sets how old a frame may be when it arrives, going by its capture time. Older frames are
+     * dropped before they are checked or converted while detection is busy or another frame waits
+     * for it, so a pipeline that fell behind catches up instead of recognizing what the camera saw
+     * a while ago. With the pipeline idle, the newest frame always goes through: the capture time
+     * is the start of the exposure, which in low light alone can take longer than the budget. 0
+     * keeps all frames.
+     */
+    public void setStaleFrameBudget(long budgetMs) {
+        staleFrameBudgetNs = budgetMs * 1000000;
+    }
 
-        // Pick the smallest of those, assuming we found any
-        if (bigEnough.size() > 0) {
-            final Size chosenSize = Collections.min(bigEnough, new CompareSizesByArea());
-            Log.i(TAG, "Chosen size: " + chosenSize.getWidth() + "x" + chosenSize.getHeight());
-            return chosenSize;
-        } else {
-            Log.e(TAG, "Couldn't find any suitable preview size");
-            return choices[0];
-        }
+    /**
+     * Sets whether authentication starts on the smallest frames the detector can use, switching to
+     * larger ones only when the faces found are too small or blurry to recognize reliably.
+     */
+    public void setAdaptiveResolution(boolean enabled) {
+        adaptiveResolution = enabled;
     }
 
     public void openCamera() {
         if (DEBUG) Log.d(TAG, "openCamera");
-        if (null != cameraDevice) {
+        if (streaming && mFrameSource.isOpen()) {
             Log.e(TAG, "camera already open");
             return;
         }
+        openRequestTimeNs = SystemClock.elapsedRealtimeNanos();
+        awaitingFirstFrame = true;
         // Enable orientation listener
         orientationListener.enable();
-        mBackgroundHandler.post(
-                () -> {
-                    CameraManager manager =
-                            (CameraManager) mContext.getSystemService(Context.CAMERA_SERVICE);
-                    try {
-                        String cameraId = manager.getCameraIdList()[0];
-                        for (String id : manager.getCameraIdList()) {
-                            CameraCharacteristics characteristics =
-                                    manager.getCameraCharacteristics(id);
-                            if (characteristics.get(CameraCharacteristics.LENS_FACING)
-                                    == CameraCharacteristics.LENS_FACING_FRONT) {
-                                cameraId = id;
-                                break;
-                            }
-                        }
-                        CameraCharacteristics characteristics =
-                                manager.getCameraCharacteristics(cameraId);
-                        StreamConfigurationMap map =
-                                characteristics.get(
-                                        CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
-                        sensorOrientation =
-                                characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
-
-                        assert map != null;
-
-                        // Danger, W.R.! Attempting to use too large a preview size could  exceed
-                        // the camera
-                        // bus' bandwidth limitation, resulting in gorgeous previews but the storage
-                        // of
-                        // garbage capture data.
-                        previewSize =
-                                chooseOptimalSize(
-                                        map.getOutputSizes(SurfaceTexture.class),
-                                        desiredInputSize.getWidth(),
-                                        desiredInputSize.getHeight());
-                        rotatedSize = previewSize;
-
-                        rgbFrameBitmap =
-                                Bitmap.createBitmap(
-                                        previewSize.getWidth(),
-                                        previewSize.getHeight(),
-                                        Bitmap.Config.ARGB_8888);
+        final boolean lowResolution = adaptiveResolution;
+        mBackgroundHandler.post(() -> mFrameSource.open(lowResolution));
+    }
+
+    @Override
+    public void onOpened(Size size, int sensorOrientation) {
+        frameStats.reset();
+        motionGate.reset();
+        this.sensorOrientation = sensorOrientation;
+        previewSize = size;
+        fullResolution = !adaptiveResolution;
+        lowDetailFrames = 0;
+        streaming = true;
+        setupFaceRecognizer();
+    }
 
+    @Override
+    public void onResized(Size size) {
+        Log.i(TAG, "Frames resized to " + size);
+        motionGate.reset();
+        // Frames of the old size are dropped until the recognizer is set up for the new one.
+        processingSize = null;
+        resetFrames();
+        previewSize = size;
+        fullResolution = true;
+        setupFaceRecognizer();
+    }
+
+    /** Switches to larger frames, called on the detection thread. */
+    private void checkFaceDetail(TrackingFaceRecognizer.Detection detection, int scale) {
+        if (!adaptiveResolution || fullResolution) return;
+        // The embedding crops the face from full resolution pixels, see convertFace.
+        final float faceSize = detection.faceSize * scale;
+        if (faceSize >= MIN_FACE_SIZE && detection.sharpness >= MIN_FACE_SHARPNESS) {
+            lowDetailFrames = 0;
+            return;
+        }
+        if (++lowDetailFrames < ESCALATE_AFTER_FRAMES) return;
+        lowDetailFrames = 0;
+        if (DEBUG) {
+            Log.d(
+                    TAG,
+                    "face size " + faceSize + " sharpness " + detection.sharpness
+                            + ", escalating");
+        }
+        final Handler handler = mBackgroundHandler;
+        if (handler == null) return;
+        handler.post(
+                () -> {
+                    if (!streaming || fullResolution) return;
+                    if (!mFrameSource.escalate()) {
+                        // Already as large as it gets, convert at full size at least.
+                        fullResolution = true;
+                        processingSize = null;
+                        resetFrames();
                         setupFaceRecognizer();
-                        manager.openCamera(cameraId, stateCallback, mBackgroundHandler);
-                    } catch (CameraAccessException | SecurityException e) {
-                        e.printStackTrace();
                     }
                 });
     }
 
     public boolean isOpen() {
-        return cameraDevice != null;
+        return mFrameSource.isOpen();
+    }
+
+    /* package-private */ void dump(PrintWriter pw) {
+        pw.println("Camera: open=" + isOpen() + " streaming=" + streaming);
+        pw.println(
+                "  previewSize="
+                        + previewSize
+                        + " processingSize="
+                        + processingSize
+                        + " adaptiveResolution="
+                        + adaptiveResolution
+                        + " fullResolution="
+                        + fullResolution);
+        pw.println("  frames: " + frameStats);
+        allocationCheck.dump(pw);
+    }
+
+    /** Counts the objects allocated per frame by each stage for the next frames, see dump. */
+    /* package-private */ void startAllocationCheck(int frames) {
+        allocationCheck.start(frames);
     }
 
+    /** Prints how long frame conversion takes, with and without splitting it across threads. */
+    /* package-private */ void dumpConvertBenchmark(PrintWriter pw) {
+        final int measured = ConvertBenchmark.dump(pw, minParallelPixels);
+        if (measured != minParallelPixels) {
+            pw.println(
+                    "  to use it: setprop "
+                            + PROP_MIN_PARALLEL_PIXELS
+                            + " "
+                            + measured
+                            + " (applies once the service restarts)");
+        }
+    }
+
+    /**
+     * Stops processing frames. If a warm session timeout is set, the capture session is only paused
+     * and closed once the timeout expires without the camera being opened again.
+     */
     public void closeCamera() {
         if (DEBUG) Log.d(TAG, "closeCamera");
-        previewSize = null;
-        if (null != previewReader) {
-            previewReader.close();
-            previewReader = null;
-        }
-        if (null != cameraDevice) {
-            cameraDevice.close();
-            cameraDevice = null;
-            mBackgroundHandler.post(() -> mCallback.stop());
+        streaming = false;
+        orientationListener.disable();
+        final Handler handler = mBackgroundHandler;
+        if (handler == null) return;
+        handler.post(
+                () -> {
+                    // An open posted before this one may have started streaming again.
+                    streaming = false;
+                    // Drops the pending frame, a frame in inference is discarded once it is done.
+                    resetFrames();
+                    currentOrientation = 0;
+                    if (previewSize != null) {
+                        Log.i(TAG, "Stopped streaming, frames: " + frameStats);
+                    }
+                    mFrameSource.pause(warmSessionTimeoutMs);
+                });
+    }
+
+    @Override
+    public void onReleased() {
+        if (DEBUG) Log.d(TAG, "onReleased");
+        streaming = false;
+        if (previewSize != null) {
+            previewSize = null;
+            mCallback.stop();
         }
-        // sets postInferenceCallback to null and frees reference to image
-        readyForNextImage();
-        rotatedSize = null;
+        // Drops the pending frame, a frame still in inference is discarded once it is done.
+        resetFrames();
+        processingSize = null;
+        processingScale = 1;
         imageOrientation = 0;
-        rgbFrameBitmap = null;
-        imageConverter = null;
-        rgbBytes = null;
-        yuvBytes = null;
         currentOrientation = 0;
         orientationListener.disable();
     }
 
-    private void fillBytes(final Image.Plane[] planes, final byte[][] yuvBytes) {
-        // Because of the variable row stride it's not possible to know in
-        // advance the actual necessary dimensions of the yuv planes.
-        for (int i = 0; i < planes.length; ++i) {
-            final ByteBuffer buffer = planes[i].getBuffer();
-            if (yuvBytes[i] == null) {
-                yuvBytes[i] = new byte[buffer.capacity()];
+    private void resetFrames() {
+        synchronized (mFrameLock) {
+            frameGeneration++;
+            faceRows = NO_FACE_ROWS;
+            if (pendingFrame != null) {
+                releaseBuffers(pendingFrame);
+                pendingFrame = null;
+            }
+            for (Frame frame; (frame = embedQueue.poll()) != null; ) {
+                releaseBuffers(frame);
+            }
+            for (Frame frame : freeFrames) {
+                releaseBuffers(frame);
+            }
+            freeFrames.clear();
+            for (int i = 0; i < FRAME_BUFFERS; i++) {
+                freeFrames.add(new Frame(frameGeneration));
+            }
+        }
+    }
+
+    private void recycleFrame(Frame frame) {
+        synchronized (mFrameLock) {
+            if (frame.generation == frameGeneration) {
+                freeFrames.add(frame);
+            } else {
+                releaseBuffers(frame);
             }
-            buffer.get(yuvBytes[i]);
         }
     }
 
-    private int[] getRgbBytes() {
-        imageConverter.run();
-        return rgbBytes;
+    private void releaseBuffers(Frame frame) {
+        bufferPool.recycle(frame.bitmap);
+        bufferPool.recycle(frame.pixels);
+        bufferPool.recycle(frame.faceBitmap);
+        bufferPool.recycle(frame.facePixels);
+        if (frame.yPlane != null) bufferPool.recycle(frame.yPlane.array());
+        if (frame.uPlane != null) bufferPool.recycle(frame.uPlane.array());
+        if (frame.vPlane != null) bufferPool.recycle(frame.vPlane.array());
+        frame.bitmap = null;
+        frame.pixels = null;
+        frame.faceBitmap = null;
+        frame.facePixels = null;
+        frame.yPlane = null;
+        frame.uPlane = null;
+        frame.vPlane = null;
     }
 
-    public void readyForNextImage() {
-        if (postInferenceCallback != null) {
-            postInferenceCallback.run();
-            postInferenceCallback = null;
+    /**
+     * Copies rows {@code [rowStart, rowEnd)} of a plane of a camera image into {@code copy}, at the
+     * same offsets, or into a new buffer if it doesn't fit.
+     */
+    private ByteBuffer copyRows(
+            ByteBuffer plane, ByteBuffer copy, int rowStride, int rowStart, int rowEnd) {
+        final int length = plane.limit();
+        if (copy == null || copy.capacity() != length) {
+            if (copy != null) bufferPool.recycle(copy.array());
+            copy = ByteBuffer.wrap(bufferPool.obtainBytes(length));
         }
+        final int start = Math.min(length, rowStart * rowStride);
+        final int end = Math.min(length, rowEnd * rowStride);
+        // Relative bulk get, the converter only reads the planes with absolute gets.
+        final int position = plane.position();
+        plane.position(start);
+        plane.get(copy.array(), start, end - start);
+        plane.position(position);
+        return copy;
     }
 
-    @Override
-    public void onImageAvailable(ImageReader reader) {
-        // Trace.beginSection("imageAvailable");
+    /**
+     * Source rows read when converting a region of the rotated full resolution frame, see {@link
+     * YuvToRgbConverter#convertRegion}, packed like {@link #faceRows}.
+     */
+    private static long sourceRows(
+            int rotation, int height, int left, int top, int right, int bottom) {
+        final int rowStart;
+        final int rowEnd;
+        switch (rotation) {
+            case 90:
+                rowStart = height - right;
+                rowEnd = height - left;
+                break;
+            case 180:
+                rowStart = height - bottom;
+                rowEnd = height - top;
+                break;
+            case 270:
+                rowStart = left;
+                rowEnd = right;
+                break;
+            default:
+                rowStart = top;
+                rowEnd = bottom;
+                break;
+        }
+        return (long) rowStart << 32 | rowEnd;
+    }
+
+    /**
+     * Source rows of the detected face of a downscaled frame, with {@code margin} times its longer
+     * side around it, or {@link #NO_FACE_ROWS} if none of it is inside the frame.
+     */
+    private static long faceSourceRows(Frame frame, float margin) {
+        final int width =
+                YuvToRgbConverter.getOutputWidth(frame.width, frame.height, frame.rotation, 1);
+        final int height =
+                YuvToRgbConverter.getOutputHeight(frame.width, frame.height, frame.rotation, 1);
+        final RectF box = frame.detection.box;
+        final float extra = margin * Math.max(box.width(), box.height());
+        final int left = Math.max(0, (int) ((box.left - extra) * frame.scale));
+        final int top = Math.max(0, (int) ((box.top - extra) * frame.scale));
+        final int right = Math.min(width, (int) Math.ceil((box.right + extra) * frame.scale));
+        final int bottom = Math.min(height, (int) Math.ceil((box.bottom + extra) * frame.scale));
+        if (right <= left || bottom <= top) return NO_FACE_ROWS;
+        return sourceRows(frame.rotation, frame.height, left, top, right, bottom);
+    }
+
+    /**
+     * Converts the pixels around the detected face of a downscaled frame at full resolution, so
+     * embedding doesn't crop the face from the point sampled bitmap. Called on the detection
+     * thread.
+     *
+     * @return false if the face is outside the rows kept of the frame, as it moved further than
+     *     expected or was the first one found
+     */
+    private boolean convertFace(Frame frame) {
+        final int width =
+                YuvToRgbConverter.getOutputWidth(frame.width, frame.height, frame.rotation, 1);
+        final int height =
+                YuvToRgbConverter.getOutputHeight(frame.width, frame.height, frame.rotation, 1);
+        if (frame.facePixels == null || frame.facePixels.length != width * height) {
+            bufferPool.recycle(frame.facePixels);
+            frame.facePixels = bufferPool.obtainPixels(width * height);
+        }
+        if (frame.faceBitmap == null
+                || frame.faceBitmap.getWidth() != width
+                || frame.faceBitmap.getHeight() != height) {
+            bufferPool.recycle(frame.faceBitmap);
+            frame.faceBitmap = bufferPool.obtainBitmap(width, height);
+        }
+        final RectF box = frame.detection.box;
+        final float margin = EMBED_CROP_MARGIN * Math.max(box.width(), box.height());
+        final int left = Math.max(0, (int) ((box.left - margin) * frame.scale));
+        final int top = Math.max(0, (int) ((box.top - margin) * frame.scale));
+        final int right = Math.min(width, (int) Math.ceil((box.right + margin) * frame.scale));
+        final int bottom = Math.min(height, (int) Math.ceil((box.bottom + margin) * frame.scale));
+        if (right <= left || bottom <= top) return false;
+        final long rows = sourceRows(frame.rotation, frame.height, left, top, right, bottom);
+        if ((int) (rows >>> 32) < frame.planeTop || (int) rows > frame.planeBottom) return false;
+        YuvToRgbConverter.convertRegion(
+                frame.yPlane,
+                frame.uPlane,
+                frame.vPlane,
+                frame.width,
+                frame.height,
+                frame.yRowStride,
+                frame.uvRowStride,
+                frame.uvPixelStride,
+                frame.rotation,
+                left,
+                top,
+                right,
+                bottom,
+                frame.facePixels);
+        frame.faceBitmap.setPixels(
+                frame.facePixels, top * width + left, width, left, top, right - left, bottom - top);
+        return true;
+    }
+
+    /** Whether detection is running or a converted frame is waiting for it. */
+    private boolean isBusy() {
+        if (detecting) return true;
+        synchronized (mFrameLock) {
+            return pendingFrame != null;
+        }
+    }
+
+    private final Runnable mDetectionRunnable = this::runDetection;
+    private final Runnable mEmbeddingRunnable = this::runEmbedding;
+
+    private void runDetection() {
+        final Frame frame;
+        synchronized (mFrameLock) {
+            frame = pendingFrame;
+            pendingFrame = null;
+        }
+        if (frame == null) return;
+        final int allocations = allocationCheck.begin();
+        boolean queued = false;
+        detecting = true;
+        try {
+            if (DEBUG) Log.d(TAG, "start detection");
+            final int detected =
+                    mCallback.detectFace(frame.bitmap, frame.detection, frame.timestampNs);
+            if (detected != CameraCallback.DETECTION_SKIPPED) {
+                // Still frames are only worth skipping once the detector saw one, with or without
+                // a face in it.
+                motionGate.markEvaluated(frame.motionSample);
+            }
+            if (detected != CameraCallback.DETECTION_FACE) {
+                // Don't keep rows of the camera frames around for a face that isn't there.
+                if (detected == CameraCallback.DETECTION_NO_FACE) faceRows = NO_FACE_ROWS;
+                frameStats.processed.incrementAndGet();
+                return;
+            }
+            checkFaceDetail(frame.detection, frame.scale);
+            // Embed from the point sampled bitmap if the face isn't in the rows kept.
+            final boolean fullResolutionFace = frame.scale > 1 && convertFace(frame);
+            frame.detection.embedScale = fullResolutionFace ? frame.scale : 1;
+            if (frame.scale > 1) {
+                faceRows = faceSourceRows(frame, EMBED_CROP_MARGIN + FACE_ROWS_SLACK);
+            }
+            frame.detectedNs = SystemClock.elapsedRealtimeNanos();
+            while (!embedQueue.offer(frame)) {
+                // Embedding didn't get to the queued frame yet, this newer one replaces it.
+                final Frame stale = embedQueue.poll();
+                if (stale != null) {
+                    if (DEBUG) Log.d(TAG, "replacing frame waiting for embedding");
+                    frameStats.droppedSuperseded.incrementAndGet();
+                    recycleFrame(stale);
+                }
+            }
+            queued = true;
+            frameStats.embedDepth.sample(embedQueue.size() + (embedding ? 1 : 0));
+            mEmbeddingHandler.post(mEmbeddingRunnable);
+        } catch (final Exception e) {
+            Log.e(TAG, "Exception!", e);
+        } finally {
+            if (DEBUG) Log.d(TAG, "done detection");
+            detecting = false;
+            if (!queued) {
+                recycleFrame(frame);
+            }
+            allocationCheck.end(AllocationCheck.DETECT, allocations);
+        }
+    }
+
+    private void runEmbedding() {
+        final Frame frame = embedQueue.poll();
+        if (frame == null) return;
+        final int allocations = allocationCheck.begin();
+        embedding = true;
         try {
-            if (DEBUG) Log.d(TAG, "onImageAvailable");
-            final Image image = reader.acquireLatestImage();
+            if (DEBUG) Log.d(TAG, "start embedding");
+            mLatencyStats.record(
+                    LatencyStats.EMBED_WAIT, SystemClock.elapsedRealtimeNanos() - frame.detectedNs);
+            mCallback.recognizeFace(
+                    frame.detection.embedScale > 1 ? frame.faceBitmap : frame.bitmap,
+                    frame.detection,
+                    frame.timestampNs);
+            frameStats.processed.incrementAndGet();
+        } catch (final Exception e) {
+            Log.e(TAG, "Exception!", e);
+        } finally {
+            if (DEBUG) Log.d(TAG, "done embedding");
+            embedding = false;
+            recycleFrame(frame);
+            allocationCheck.end(AllocationCheck.EMBED, allocations);
+        }
+    }
 
-            if (image == null) {
-                if (DEBUG) Log.d(TAG, "image is null");
+    @Override
+    public void onFrameAvailable(YuvFrame image) {
+        Trace.beginSection("imageAvailable");
+        final int allocations = allocationCheck.begin();
+        Frame frame = null;
+        try {
+            if (DEBUG) Log.d(TAG, "onFrameAvailable");
+            frameStats.acquired.incrementAndGet();
+
+            if (!streaming
+                    || previewSize == null
+                    || processingSize == null
+                    || image.width != previewSize.getWidth()
+                    || image.height != previewSize.getHeight()) {
+                // Camera is currently being created or destroyed.
+                if (DEBUG) Log.d(TAG, "previewSize or processingSize is null");
+                frameStats.droppedNotReady.incrementAndGet();
                 return;
             }
 
-            if (previewSize == null) {
-                // Camera is currently being destroyed.
-                if (DEBUG) Log.d(TAG, "previewSize is null");
-                image.close();
+            final long gatesStartNs = SystemClock.elapsedRealtimeNanos();
+            if (awaitingFirstFrame) {
+                awaitingFirstFrame = false;
+                mLatencyStats.record(
+                        LatencyStats.FIRST_FRAME, gatesStartNs - openRequestTimeNs);
+                mCallback.onFirstFrame(image.timestampNs);
+            }
+
+            final long budgetNs = staleFrameBudgetNs;
+            if (budgetNs > 0 && gatesStartNs - image.timestampNs > budgetNs && isBusy()) {
+                if (DEBUG) {
+                    Log.d(TAG, "dropping stale frame, age " + (gatesStartNs - image.timestampNs));
+                }
+                frameStats.droppedStale.incrementAndGet();
                 return;
             }
 
             int previewWidth = previewSize.getWidth();
             int previewHeight = previewSize.getHeight();
 
-            if (rgbBytes == null) {
-                rgbBytes = new int[previewWidth * previewHeight];
+            final int quality =
+                    qualityGate.check(image.yBuffer, previewWidth, previewHeight, image.yRowStride);
+            final boolean moved =
+                    quality == FaceAcquiredInfo.GOOD
+                            && motionGate.shouldEvaluate(
+                                    image.yBuffer,
+                                    previewWidth,
+                                    previewHeight,
+                                    image.yRowStride,
+                                    gatesStartNs / 1000000);
+            mLatencyStats.record(
+                    LatencyStats.FRAME_GATES, SystemClock.elapsedRealtimeNanos() - gatesStartNs);
+            if (quality != FaceAcquiredInfo.GOOD) {
+                if (DEBUG) Log.d(TAG, "rejecting image " + quality + ": " + qualityGate);
+                frameStats.rejectedQuality.incrementAndGet();
+                mCallback.onFrameRejected(quality);
+                return;
             }
-            if (yuvBytes == null) {
-                yuvBytes = new byte[3][];
+
+            if (!moved) {
+                if (DEBUG) Log.d(TAG, "skipping still image: " + motionGate.difference);
+                frameStats.skippedStill.incrementAndGet();
+                return;
             }
 
-            if (isProcessingFrame) {
-                if (DEBUG) Log.d(TAG, "still processing image, skipping this one");
-                image.close();
+            synchronized (mFrameLock) {
+                frame = freeFrames.poll();
+                if (frame == null && pendingFrame != null) {
+                    // Detection didn't get to the queued frame yet, reuse it for this newer one.
+                    frame = pendingFrame;
+                    pendingFrame = null;
+                    frameStats.droppedSuperseded.incrementAndGet();
+                }
+            }
+            if (frame == null) {
+                if (DEBUG) Log.d(TAG, "no free frame buffer, skipping this one");
+                frameStats.droppedBusy.incrementAndGet();
                 return;
             }
-            isProcessingFrame = true;
-            if (DEBUG) Log.d(TAG, "start processing image " + image.hashCode());
-            final Image.Plane[] planes = image.getPlanes();
-            fillBytes(planes, yuvBytes);
-            yRowStride = planes[0].getRowStride();
-            final int uvRowStride = planes[1].getRowStride();
-            final int uvPixelStride = planes[1].getPixelStride();
-
-            imageConverter =
-                    () ->
-                            ImageUtils.convertYUV420ToARGB8888(
-                                    yuvBytes[0],
-                                    yuvBytes[1],
-                                    yuvBytes[2],
-                                    previewWidth,
-                                    previewHeight,
-                                    yRowStride,
-                                    uvRowStride,
-                                    uvPixelStride,
-                                    rgbBytes);
-
-            postInferenceCallback =
-                    () -> {
-                        if (DEBUG) Log.d(TAG, "done processing image " + image.hashCode());
-                        image.close();
-                        isProcessingFrame = false;
-                    };
-
-            rgbFrameBitmap.setPixels(
-                    getRgbBytes(), 0, previewWidth, 0, 0, previewWidth, previewHeight);
-
-            mCallback.processImage(previewSize, rotatedSize, rgbFrameBitmap, imageOrientation);
+
+            final int outWidth = processingSize.getWidth();
+            final int outHeight = processingSize.getHeight();
+
+            if (frame.pixels == null || frame.pixels.length != outWidth * outHeight) {
+                bufferPool.recycle(frame.pixels);
+                frame.pixels = bufferPool.obtainPixels(outWidth * outHeight);
+            }
+            if (frame.bitmap == null
+                    || frame.bitmap.getWidth() != outWidth
+                    || frame.bitmap.getHeight() != outHeight) {
+                bufferPool.recycle(frame.bitmap);
+                frame.bitmap = bufferPool.obtainBitmap(outWidth, outHeight);
+            }
+
+            motionGate.copySample(frame.motionSample);
+            frame.scale = processingScale;
+            frame.rotation = imageOrientation;
+            if (DEBUG) Log.d(TAG, "start processing image " + image.timestampNs);
+            final long convertStartNs = SystemClock.elapsedRealtimeNanos();
+            // Read the planes in place, the buffers stay valid until the frame is closed.
+            converter.convert(
+                    image.yBuffer,
+                    image.uBuffer,
+                    image.vBuffer,
+                    previewWidth,
+                    previewHeight,
+                    image.yRowStride,
+                    image.uvRowStride,
+                    image.uvPixelStride,
+                    frame.rotation,
+                    frame.scale,
+                    frame.pixels);
+            final long rows = faceRows;
+            frame.planeTop = 0;
+            frame.planeBottom = 0;
+            if (frame.scale > 1 && rows != NO_FACE_ROWS) {
+                // Keep the full resolution rows where the face should be for the embedding crop.
+                // Without a face found yet, the first one is embedded from the downscaled frame.
+                frame.planeTop = (int) (rows >>> 32);
+                frame.planeBottom = (int) rows;
+                final int uvTop = frame.planeTop >> 1;
+                final int uvBottom = (frame.planeBottom + 1) >> 1;
+                frame.yPlane =
+                        copyRows(
+                                image.yBuffer,
+                                frame.yPlane,
+                                image.yRowStride,
+                                frame.planeTop,
+                                frame.planeBottom);
+                frame.uPlane =
+                        copyRows(image.uBuffer, frame.uPlane, image.uvRowStride, uvTop, uvBottom);
+                frame.vPlane =
+                        copyRows(image.vBuffer, frame.vPlane, image.uvRowStride, uvTop, uvBottom);
+            }
+            if (frame.scale > 1) {
+                frame.width = previewWidth;
+                frame.height = previewHeight;
+                frame.yRowStride = image.yRowStride;
+                frame.uvRowStride = image.uvRowStride;
+                frame.uvPixelStride = image.uvPixelStride;
+            }
+            // The pixels are ours now, give the buffer back to the camera right away.
+            image.close();
+            frame.bitmap.setPixels(frame.pixels, 0, outWidth, 0, 0, outWidth, outHeight);
+            mLatencyStats.record(
+                    LatencyStats.CONVERT, SystemClock.elapsedRealtimeNanos() - convertStartNs);
+            frame.timestampNs = image.timestampNs;
+
+            // Hand the frame to the detection thread, replacing one it didn't get to yet.
+            final Frame stale;
+            synchronized (mFrameLock) {
+                stale = pendingFrame;
+                pendingFrame = frame;
+            }
+            frame = null;
+            frameStats.converted.incrementAndGet();
+            frameStats.detectDepth.sample(1 + (detecting ? 1 : 0));
+            if (stale != null) {
+                if (DEBUG) Log.d(TAG, "replacing pending frame");
+                frameStats.droppedSuperseded.incrementAndGet();
+                recycleFrame(stale);
+            }
+            mDetectionHandler.post(mDetectionRunnable);
         } catch (final Exception e) {
             Log.e(TAG, "Exception!", e);
         } finally {
-            // Trace.endSection();
+            if (frame != null) {
+                recycleFrame(frame);
+            }
+            allocationCheck.end(AllocationCheck.FRAME, allocations);
+            Trace.endSection();
         }
     }
 }
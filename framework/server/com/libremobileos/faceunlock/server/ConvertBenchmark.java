@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2023 LibreMobileOS Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.libremobileos.faceunlock.server;
+
+import android.os.SystemClock;
+
+import com.libremobileos.faceunlock.common.ParallelYuvToRgbConverter;
+import com.libremobileos.yifan.face.ImageUtils;
+
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Times YUV to RGB conversion on synthetic frames, for the {@code --convert-bench} dump: {@code
+ * ImageUtils.convertYUV420ToARGB8888} with the plane copy it needs, against the converter on one
+ * thread and split across threads, at full size and downscaled for processing.
+ *
+ * <p>The smallest output size where splitting wins is the threshold to convert with on the device,
+ * which doesn't split frames until given one.
+ */
+/* package-private */ final class ConvertBenchmark {
+
+    private static final int[][] SIZES = {{640, 480}, {1280, 720}};
+    private static final int[] SCALES = {1, 2};
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int ROUNDS = 30;
+    // Splitting only counts as faster when it saves at least this fraction, not within noise.
+    private static final double MIN_SAVING = 0.1;
+
+    private ConvertBenchmark() {}
+
+    /**
+     * Runs the benchmark and prints the results.
+     *
+     * @param minParallelPixels Threshold in use, for comparison
+     * @return Smallest output size where splitting was faster, {@link
+     *     ParallelYuvToRgbConverter#MIN_PARALLEL_PIXELS} if it never was
+     */
+    static int dump(PrintWriter pw, int minParallelPixels) {
+        final int threads = ParallelYuvToRgbConverter.defaultThreads();
+        pw.println("Convert benchmark (ms per frame, " + threads + " threads):");
+        pw.println(
+                String.format(
+                        Locale.US,
+                        "  %-10s %5s %9s %11s %9s %9s",
+                        "frame",
+                        "scale",
+                        "out_px",
+                        "image_utils",
+                        "single",
+                        "parallel"));
+        final ParallelYuvToRgbConverter single = new ParallelYuvToRgbConverter(1);
+        final ParallelYuvToRgbConverter parallel = new ParallelYuvToRgbConverter(threads, 0);
+        int breakEven = ParallelYuvToRgbConverter.MIN_PARALLEL_PIXELS;
+        try {
+            for (int[] size : SIZES) {
+                final Frame frame = new Frame(size[0], size[1]);
+                for (int scale : SCALES) {
+                    final int pixels = (size[0] / scale) * (size[1] / scale);
+                    final double imageUtilsMs = scale == 1 ? timeImageUtilsMs(frame) : -1;
+                    final double singleMs = timeConverterMs(single, frame, scale);
+                    final double parallelMs = timeConverterMs(parallel, frame, scale);
+                    if (parallelMs < singleMs * (1 - MIN_SAVING)) {
+                        breakEven = Math.min(breakEven, pixels);
+                    }
+                    pw.println(
+                            String.format(
+                                    Locale.US,
+                                    "  %-10s %5d %9d %11s %9.2f %9.2f",
+                                    size[0] + "x" + size[1],
+                                    scale,
+                                    pixels,
+                                    imageUtilsMs < 0
+                                            ? "-"
+                                            : String.format(Locale.US, "%.2f", imageUtilsMs),
+                                    singleMs,
+                                    parallelMs));
+                }
+            }
+        } finally {
+            single.shutdown();
+            parallel.shutdown();
+        }
+        pw.println(
+                "  parallel 10% faster from "
+                        + pixels(breakEven)
+                        + ", in use from "
+                        + pixels(minParallelPixels));
+        return breakEven;
+    }
+
+    private static String pixels(int threshold) {
+        return threshold == ParallelYuvToRgbConverter.MIN_PARALLEL_PIXELS
+                ? "never"
+                : threshold + " pixels";
+    }
+
+    /** A random semi-planar frame, laid out like camera images usually are. */
+    private static final class Frame {
+        final int width;
+        final int height;
+        final ByteBuffer y;
+        final ByteBuffer u;
+        final ByteBuffer v;
+        final byte[][] bytes = new byte[3][];
+        final int[] out;
+
+        Frame(int width, int height) {
+            this.width = width;
+            this.height = height;
+            final byte[] luma = new byte[width * height];
+            final byte[] chroma = new byte[width * height / 2];
+            final Random random = new Random(0);
+            random.nextBytes(luma);
+            random.nextBytes(chroma);
+            y = ByteBuffer.allocateDirect(luma.length).put(luma);
+            final ByteBuffer uv = ByteBuffer.allocateDirect(chroma.length).put(chroma);
+            uv.position(0).limit(chroma.length - 1);
+            u = uv.slice();
+            uv.position(1).limit(chroma.length);
+            v = uv.slice();
+            y.rewind();
+            bytes[0] = new byte[y.capacity()];
+            bytes[1] = new byte[u.capacity()];
+            bytes[2] = new byte[v.capacity()];
+            out = new int[width * height];
+        }
+    }
+
+    private static double timeImageUtilsMs(Frame frame) {
+        long start = 0;
+        for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+            if (round == WARMUP_ROUNDS) start = SystemClock.elapsedRealtimeNanos();
+            // The planes had to be copied out of the image first.
+            frame.y.duplicate().get(frame.bytes[0]);
+            frame.u.duplicate().get(frame.bytes[1]);
+            frame.v.duplicate().get(frame.bytes[2]);
+            ImageUtils.convertYUV420ToARGB8888(
+                    frame.bytes[0],
+                    frame.bytes[1],
+                    frame.bytes[2],
+                    frame.width,
+                    frame.height,
+                    frame.width,
+                    frame.width,
+                    2,
+                    frame.out);
+        }
+        return (SystemClock.elapsedRealtimeNanos() - start) / 1e6 / ROUNDS;
+    }
+
+    private static double timeConverterMs(
+            ParallelYuvToRgbConverter converter, Frame frame, int scale) {
+        long start = 0;
+        for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+            if (round == WARMUP_ROUNDS) start = SystemClock.elapsedRealtimeNanos();
+            converter.convert(
+                    frame.y,
+                    frame.u,
+                    frame.v,
+                    frame.width,
+                    frame.height,
+                    frame.width,
+                    frame.width,
+                    2,
+                    0,
+                    scale,
+                    frame.out);
+        }
+        return (SystemClock.elapsedRealtimeNanos() - start) / 1e6 / ROUNDS;
+    }
+}
@@ -0,0 +1,335 @@
+/*
+ * Copyright (C) 2023 LibreMobileOS Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.libremobileos.faceunlock.server;
+
+import com.libremobileos.faceunlock.common.FaceTemplates;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The enrolled templates of a user, normalized to unit length and laid out row by row in a single
+ * array, so a face is matched against all of them in one pass without touching any objects.
+ *
+ * <p>Distances are euclidean between unit vectors, as the face library's {@code compare} computes
+ * them. For unit vectors that is {@code sqrt(2 - 2 * dot)}, so matching only needs dot products.
+ * The library stays the reference: {@link TrackingFaceRecognizer} confirms every accepted match
+ * with its {@code compare} on the original {@link #getTemplates templates}.
+ *
+ * <p>Rows are grouped by face. Each face keeps the centroid of its templates and their largest
+ * distance to it, so by the triangle inequality a face whose centroid is further than that plus
+ * the match threshold is skipped after a single dot product.
+ *
+ * <p>Optionally the rows are quantized to int8 with a scale per row, as {@link
+ * FaceTemplates#ENCODING_INT8} stores them. That takes a quarter of the memory and the dot
+ * products become integer ones, at the cost of a small distance error, see {@link
+ * MatchBenchmark}.
+ *
+ * <p>Immutable, thread safe.
+ */
+/* package-private */ final class EmbeddingMatrix {
+
+    private static final float PRUNE_SLACK = 1e-3f;
+
+    // Float rows, null if quantized.
+    private final float[] mData;
+    // Quantized rows and their scales, null if not quantized.
+    private final byte[] mQuantized;
+    private final float[] mScales;
+    private final int mDimension;
+    private final int mCount;
+    // The templates as enrolled, not normalized.
+    private final FaceTemplates mTemplates;
+
+    // Per face: id, first row, number of rows, centroid and its squared length, largest distance
+    // of a row to the centroid.
+    private final int[] mFaceIds;
+    private final int[] mFaceStart;
+    private final int[] mFaceCount;
+    private final float[] mCentroids;
+    private final float[] mCentroidNorms;
+    private final float[] mRadii;
+
+    /** A face to match, normalized and quantized once for all rows. Not thread safe. */
+    static final class Query {
+        final float[] values;
+        final byte[] quantized;
+        float scale;
+
+        Query(int dimension) {
+            values = new float[dimension];
+            quantized = new byte[dimension];
+        }
+
+        /** Sets the embedding of the face, which must have the dimension of the query. */
+        void set(float[] embedding) {
+            normalize(embedding, values);
+            scale = FaceTemplates.quantize(values, quantized);
+        }
+    }
+
+    private EmbeddingMatrix(
+            FaceTemplates templates,
+            float[] data,
+            int dimension,
+            int count,
+            int[] faceIds,
+            int[] faceStart,
+            boolean quantize) {
+        mTemplates = templates;
+        mDimension = dimension;
+        mCount = count;
+        mFaceIds = faceIds;
+        mFaceStart = faceStart;
+        final int faces = faceIds.length;
+        mFaceCount = new int[faces];
+        mCentroids = new float[faces * dimension];
+        mCentroidNorms = new float[faces];
+        mRadii = new float[faces];
+        for (int f = 0; f < faces; f++) {
+            final int end = f + 1 < faces ? faceStart[f + 1] : count;
+            mFaceCount[f] = end - faceStart[f];
+            final int centroid = f * dimension;
+            for (int row = faceStart[f]; row < end; row++) {
+                for (int i = 0; i < dimension; i++) {
+                    mCentroids[centroid + i] += data[row * dimension + i];
+                }
+            }
+            float norm = 0;
+            for (int i = 0; i < dimension; i++) {
+                mCentroids[centroid + i] /= mFaceCount[f];
+                norm += mCentroids[centroid + i] * mCentroids[centroid + i];
+            }
+            mCentroidNorms[f] = norm;
+            float radius = 0;
+            for (int row = faceStart[f]; row < end; row++) {
+                float sum = 0;
+                for (int i = 0; i < dimension; i++) {
+                    final float d = data[row * dimension + i] - mCentroids[centroid + i];
+                    sum += d * d;
+                }
+                radius = Math.max(radius, sum);
+            }
+            mRadii[f] = (float) Math.sqrt(radius);
+        }
+
+        if (quantize) {
+            mData = null;
+            mQuantized = new byte[dimension * count];
+            mScales = new float[count];
+            final float[] row = new float[dimension];
+            final byte[] quantized = new byte[dimension];
+            for (int r = 0; r < count; r++) {
+                System.arraycopy(data, r * dimension, row, 0, dimension);
+                mScales[r] = FaceTemplates.quantize(row, quantized);
+                System.arraycopy(quantized, 0, mQuantized, r * dimension, dimension);
+            }
+        } else {
+            mData = data;
+            mQuantized = null;
+            mScales = null;
+        }
+    }
+
+    /**
+     * Copies and normalizes templates.
+     *
+     * @param quantize Whether to keep the rows as int8
+     * @return The matrix, null if there are no templates
+     */
+    static EmbeddingMatrix from(FaceTemplates templates, boolean quantize) {
+        if (templates == null) return null;
+        final int dimension = templates.getDimension();
+        final int count = templates.getCount();
+        // Stable sort of the rows by face id, so each face is contiguous.
+        final TreeMap<Integer, List<Integer>> rowsByFace = new TreeMap<>();
+        for (int i = 0; i < count; i++) {
+            rowsByFace.computeIfAbsent(templates.getFaceId(i), k -> new ArrayList<>()).add(i);
+        }
+        final float[] data = new float[dimension * count];
+        final float[] row = new float[dimension];
+        final int[] faceIds = new int[rowsByFace.size()];
+        final int[] faceStart = new int[rowsByFace.size()];
+        int face = 0;
+        int offset = 0;
+        for (Map.Entry<Integer, List<Integer>> entry : rowsByFace.entrySet()) {
+            faceIds[face] = entry.getKey();
+            faceStart[face] = offset / dimension;
+            for (int index : entry.getValue()) {
+                templates.get(index, row);
+                normalize(row, row);
+                System.arraycopy(row, 0, data, offset, dimension);
+                offset += dimension;
+            }
+            face++;
+        }
+        return new EmbeddingMatrix(
+                templates, data, dimension, count, faceIds, faceStart, quantize);
+    }
+
+    /**
+     * Scales {@code in} to unit length into {@code out}, which may be the same array. A zero vector
+     * stays zero.
+     */
+    static void normalize(float[] in, float[] out) {
+        float sum = 0;
+        for (int i = 0; i < in.length; i++) {
+            sum += in[i] * in[i];
+        }
+        final float scale = sum > 0 ? (float) (1 / Math.sqrt(sum)) : 0;
+        for (int i = 0; i < in.length; i++) {
+            out[i] = in[i] * scale;
+        }
+    }
+
+    /** The templates the matrix was created from, as enrolled. */
+    FaceTemplates getTemplates() {
+        return mTemplates;
+    }
+
+    int getDimension() {
+        return mDimension;
+    }
+
+    int getCount() {
+        return mCount;
+    }
+
+    /** Number of enrolled faces. */
+    int getFaceCount() {
+        return mFaceIds.length;
+    }
+
+    boolean isQuantized() {
+        return mQuantized != null;
+    }
+
+    /** Memory taken by the rows, without the per face index. */
+    int getRowBytes() {
+        return mQuantized != null
+                ? mQuantized.length + mScales.length * Float.BYTES
+                : mData.length * Float.BYTES;
+    }
+
+    /** Copies a normalized row into {@code out}, dequantizing it if needed. */
+    void getRow(int row, float[] out) {
+        final int offset = row * mDimension;
+        for (int i = 0; i < mDimension; i++) {
+            out[i] = mQuantized != null ? mQuantized[offset + i] * mScales[row] : mData[offset + i];
+        }
+    }
+
+    /** Distance of a face to a row. */
+    float distance(Query query, int row) {
+        return (float) Math.sqrt(Math.max(0, 2 - 2 * dot(query, row)));
+    }
+
+    /** Dot product of a face and a row, the kernel of {@link #match}. */
+    float dot(Query query, int row) {
+        final int dimension = mDimension;
+        final int offset = row * dimension;
+        if (mQuantized != null) {
+            final byte[] q = query.quantized;
+            final byte[] data = mQuantized;
+            // Kept as a plain multiply-add over bytes so ART can vectorize it where the CPU has
+            // integer dot product instructions. At most 127 * 127 * dimension, fits an int.
+            int sum = 0;
+            for (int i = 0; i < dimension; i++) {
+                sum += q[i] * data[offset + i];
+            }
+            return sum * query.scale * mScales[row];
+        }
+        final float[] q = query.values;
+        final float[] data = mData;
+        float sum = 0;
+        for (int i = 0; i < dimension; i++) {
+            sum += q[i] * data[offset + i];
+        }
+        return sum;
+    }
+
+    /**
+     * Matches a face against the templates of all enrolled faces.
+     *
+     * @param query The face, of the dimension of the matrix
+     * @param maxDistance Distance below which a template counts as matching
+     * @param minCount Number of matching templates a face needs to be recognized
+     * @param nearest Receives the distance to the closest template at index 0, or {@link
+     *     Float#MAX_VALUE} if every face was skipped
+     * @return Id of the recognized face whose closest template is nearest, or -1 if none is
+     */
+    int match(Query query, float maxDistance, int minCount, float[] nearest) {
+        final float[] values = query.values;
+        final int dimension = mDimension;
+        // distance < maxDistance <=> dot > 1 - maxDistance^2 / 2
+        final float minDot = 1 - maxDistance * maxDistance / 2;
+        float bestDot = -Float.MAX_VALUE;
+        float bestRecognizedDot = -Float.MAX_VALUE;
+        int recognized = -1;
+        for (int f = 0; f < mFaceIds.length; f++) {
+            final int centroid = f * dimension;
+            float centroidDot = 0;
+            for (int i = 0; i < dimension; i++) {
+                centroidDot += values[i] * mCentroids[centroid + i];
+            }
+            final float centroidDistance =
+                    (float) Math.sqrt(Math.max(0, 1 + mCentroidNorms[f] - 2 * centroidDot));
+            // No template of this face can be within maxDistance, with some slack for float error.
+            if (centroidDistance - mRadii[f] > maxDistance + PRUNE_SLACK) continue;
+
+            float faceBestDot = -Float.MAX_VALUE;
+            int matching = 0;
+            for (int row = mFaceStart[f], end = row + mFaceCount[f]; row < end; row++) {
+                final float dot = dot(query, row);
+                if (dot > minDot) matching++;
+                if (dot > faceBestDot) faceBestDot = dot;
+            }
+            if (faceBestDot > bestDot) bestDot = faceBestDot;
+            if (matching >= minCount && faceBestDot > bestRecognizedDot) {
+                bestRecognizedDot = faceBestDot;
+                recognized = mFaceIds[f];
+            }
+        }
+        nearest[0] =
+                bestDot == -Float.MAX_VALUE
+                        ? Float.MAX_VALUE
+                        : (float) Math.sqrt(Math.max(0, 2 - 2 * bestDot));
+        return recognized;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(mCount)
+                .append(mQuantized != null ? " int8" : " float")
+                .append(" templates of dimension ")
+                .append(mDimension);
+        for (int f = 0; f < mFaceIds.length; f++) {
+            sb.append(
+                    String.format(
+                            Locale.US,
+                            "\n  face %d: %d templates, radius %.3f",
+                            mFaceIds[f],
+                            mFaceCount[f],
+                            mRadii[f]));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2023 LibreMobileOS Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.libremobileos.faceunlock.server;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.RectF;
+
+import com.libremobileos.yifan.face.FaceDetector;
+import com.libremobileos.yifan.face.FaceScanner;
+
+import java.util.List;
+
+/**
+ * The face library's detection and embedding models, behind the interfaces {@link
+ * TrackingFaceRecognizer} runs them through.
+ *
+ * <p>The library doesn't expose the input sizes of its models, but stream and processing sizes are
+ * chosen from {@link TrackingFaceRecognizer#DETECTOR_INPUT_SIZE} and {@link
+ * TrackingFaceRecognizer#SCANNER_INPUT_SIZE} before a model is loaded. Loading checks them against
+ * the size the library actually scales its input to, and fails if they differ.
+ *
+ * <p>Loaded once and shared by every recognizer, which only keep their per-size inputs. That is
+ * safe as long as the detector only runs on the detection thread and the scanner only on the
+ * embedding thread, as {@link CameraService} does.
+ */
+/* package-private */ final class FaceModels {
+
+    private static final float MIN_FACE_CONFIDENCE = 0.6f;
+    private static final int THREADS = 4;
+    // Side of the frame the input sizes are checked with, any size works.
+    private static final int PROBE_SIZE = 64;
+    // Frame bitmaps to keep a scanner input for, at least as many as CameraService cycles through.
+    // The input only keeps the bitmap and crops it when processing.
+    private static final int SCANNER_INPUT_CACHE_SIZE = 4;
+
+    private final FaceDetector mDetector;
+    private final FaceScanner mScanner;
+
+    private FaceModels(FaceDetector detector, FaceScanner scanner) {
+        mDetector = detector;
+        mScanner = scanner;
+    }
+
+    /**
+     * Loads the models.
+     *
+     * @throws IllegalStateException if a model takes another input size than declared in {@link
+     *     TrackingFaceRecognizer}
+     */
+    static FaceModels load(Context context) {
+        final FaceModels models =
+                new FaceModels(
+                        FaceDetector.create(context, MIN_FACE_CONFIDENCE, false, false, THREADS),
+                        FaceScanner.create(context, false, false, THREADS));
+        final Bitmap probe = Bitmap.createBitmap(PROBE_SIZE, PROBE_SIZE, Bitmap.Config.ARGB_8888);
+        checkInputSize(
+                "detector",
+                new FaceDetector.InputImageProcessor(PROBE_SIZE, PROBE_SIZE, 0)
+                        .process(probe)
+                        .getProcessedImage(),
+                TrackingFaceRecognizer.DETECTOR_INPUT_SIZE);
+        checkInputSize(
+                "scanner",
+                new FaceScanner.InputImageProcessor(probe, 0)
+                        .process(new RectF(0, 0, PROBE_SIZE, PROBE_SIZE))
+                        .getProcessedImage(),
+                TrackingFaceRecognizer.SCANNER_INPUT_SIZE);
+        probe.recycle();
+        return models;
+    }
+
+    private static void checkInputSize(String model, Bitmap input, int expected) {
+        if (input.getWidth() != expected || input.getHeight() != expected) {
+            throw new IllegalStateException(
+                    "The "
+                            + model
+                            + " model takes "
+                            + input.getWidth()
+                            + "x"
+                            + input.getHeight()
+                            + " input, but frames are sized for "
+                            + expected
+                            + "x"
+                            + expected);
+        }
+    }
+
+    /** Returns a detector for frames of the given size. */
+    TrackingFaceRecognizer.Detector newDetector(int width, int height) {
+        final FaceDetector.InputImageProcessor input =
+                new FaceDetector.InputImageProcessor(width, height, 0);
+        return (frame, face) -> {
+            final List<FaceDetector.Face> faces = mDetector.detectFaces(input.process(frame));
+            if (faces == null || faces.isEmpty()) return 0;
+            face.set(faces.get(0).getLocation());
+            return faces.size();
+        };
+    }
+
+    /** Returns a scanner with its own inputs and last face, for one recognizer. */
+    TrackingFaceRecognizer.Scanner newScanner() {
+        return new Scanner();
+    }
+
+    private final class Scanner implements TrackingFaceRecognizer.Scanner {
+        // Scanner inputs of the frame bitmaps seen last, which the camera keeps cycling through.
+        private final Bitmap[] mBitmaps = new Bitmap[SCANNER_INPUT_CACHE_SIZE];
+        private final FaceScanner.InputImageProcessor[] mInputs =
+                new FaceScanner.InputImageProcessor[SCANNER_INPUT_CACHE_SIZE];
+        private int mNextInput = 0;
+        private FaceScanner.Face mFace;
+
+        @Override
+        public boolean scan(Bitmap frame, RectF box, TrackingFaceRecognizer.Scan scan) {
+            final FaceScanner.Face face = mScanner.detectFace(input(frame).process(box), true);
+            mFace = face;
+            if (face == null) return false;
+            scan.brightnessHint = face.getBrightnessHint();
+            scan.embedding = face.getExtra();
+            return true;
+        }
+
+        @Override
+        public float compare(float[] template) {
+            return mFace != null ? mFace.compare(template) : Float.MAX_VALUE;
+        }
+
+        /** Returns the input of a frame bitmap, only creating it for a bitmap not seen yet. */
+        private FaceScanner.InputImageProcessor input(Bitmap bitmap) {
+            for (int i = 0; i < SCANNER_INPUT_CACHE_SIZE; i++) {
+                if (mBitmaps[i] == bitmap) return mInputs[i];
+            }
+            final FaceScanner.InputImageProcessor input =
+                    new FaceScanner.InputImageProcessor(bitmap, 0);
+            mBitmaps[mNextInput] = bitmap;
+            mInputs[mNextInput] = input;
+            mNextInput = (mNextInput + 1) % SCANNER_INPUT_CACHE_SIZE;
+            return input;
+        }
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2023 LibreMobileOS Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.libremobileos.faceunlock.server;
+
+import android.util.Log;
+
+import com.libremobileos.faceunlock.common.FaceTemplates;
+import com.libremobileos.yifan.face.DirectoryFaceStorageBackend;
+import com.libremobileos.yifan.face.FaceStorageBackend;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * The enrolled faces of one user and their templates, in a single {@link FaceTemplates} file that
+ * is memory mapped when read. Faces get increasing ids, starting at {@link #FIRST_FACE_ID}.
+ *
+ * <p>Thread safe.
+ */
+/* package-private */ final class FaceTemplateStore {
+
+    private static final String TAG = "FaceTemplateStore";
+    private static final boolean DEBUG = FaceUnlockServer.DEBUG;
+
+    /** Id of the first face enrolled, the only one before several faces were supported. */
+    static final int FIRST_FACE_ID = 100;
+
+    private static final String FILE_NAME = "faces.bin";
+    // Where DirectoryFaceStorageBackend kept the text encoded templates.
+    private static final String LEGACY_DIR_NAME = "faces";
+
+    private final File mFile;
+    private final File mTempFile;
+    // Mapped templates, guarded by this. Replacing the file leaves existing mappings intact.
+    private FaceTemplates mTemplates;
+    private boolean mLoaded = false;
+
+    /** @param storePath Directory of the user's face data */
+    FaceTemplateStore(String storePath) {
+        mFile = new File(storePath, FILE_NAME);
+        mTempFile = new File(storePath, FILE_NAME + ".tmp");
+    }
+
+    /** Returns the enrolled templates, or null if there are none. */
+    synchronized FaceTemplates load() {
+        if (!mLoaded) {
+            mLoaded = true;
+            mTemplates = null;
+            if (mFile.exists()) {
+                try {
+                    mTemplates = FaceTemplates.map(mFile);
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to read face templates", e);
+                }
+            }
+        }
+        return mTemplates;
+    }
+
+    /** Whether a face is enrolled. */
+    boolean hasTemplates() {
+        return load() != null;
+    }
+
+    /** Ids of the enrolled faces, in ascending order. */
+    synchronized int[] getFaceIds() {
+        final FaceTemplates templates = load();
+        if (templates == null) return new int[0];
+        final TreeSet<Integer> ids = new TreeSet<>();
+        for (int i = 0; i < templates.getCount(); i++) {
+            ids.add(templates.getFaceId(i));
+        }
+        final int[] result = new int[ids.size()];
+        int i = 0;
+        for (int id : ids) {
+            result[i++] = id;
+        }
+        return result;
+    }
+
+    /** Id the next face added will get. */
+    synchronized int nextFaceId() {
+        final int[] ids = getFaceIds();
+        return ids.length == 0 ? FIRST_FACE_ID : Math.max(FIRST_FACE_ID, ids[ids.length - 1] + 1);
+    }
+
+    /**
+     * Adds a face.
+     *
+     * @param encoded Templates of the face in the {@link FaceTemplates} format, their face ids are
+     *     ignored
+     * @param faceId Id to store the face under, replacing the face if it is already enrolled, or -1
+     *     for {@link #nextFaceId}
+     * @return Id of the face, or -1 if the templates are invalid or couldn't be written
+     */
+    synchronized int add(byte[] encoded, int faceId) {
+        final FaceTemplates added;
+        try {
+            added = FaceTemplates.wrap(encoded);
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Refusing to add invalid face templates", e);
+            return -1;
+        }
+        if (faceId == -1) faceId = nextFaceId();
+        final List<float[]> templates = new ArrayList<>();
+        final List<Integer> faceIds = new ArrayList<>();
+        final FaceTemplates existing = load();
+        if (existing != null) {
+            final float[][] all = existing.toArray();
+            for (int i = 0; i < all.length; i++) {
+                if (existing.getFaceId(i) != faceId) {
+                    templates.add(all[i]);
+                    faceIds.add(existing.getFaceId(i));
+                }
+            }
+        }
+        if (!templates.isEmpty() && existing.getDimension() != added.getDimension()) {
+            Log.e(TAG, "Refusing to add face templates of a different dimension");
+            return -1;
+        }
+        for (float[] template : added.toArray()) {
+            templates.add(template);
+            faceIds.add(faceId);
+        }
+        final byte[] merged =
+                FaceTemplates.encode(
+                        templates.toArray(new float[0][]),
+                        faceIds.stream().mapToInt(Integer::intValue).toArray());
+        return save(merged) ? faceId : -1;
+    }
+
+    /**
+     * Removes a face.
+     *
+     * @param faceId Id of the face, 0 for all of them
+     * @return Ids of the removed faces, empty if there was none to remove or it failed
+     */
+    synchronized int[] remove(int faceId) {
+        final FaceTemplates existing = load();
+        if (existing == null) return new int[0];
+        final int[] ids = getFaceIds();
+        if (faceId == 0) {
+            mLoaded = false;
+            return mFile.delete() ? ids : new int[0];
+        }
+        if (Arrays.binarySearch(ids, faceId) < 0) return new int[0];
+        if (ids.length == 1) {
+            mLoaded = false;
+            return mFile.delete() ? ids : new int[0];
+        }
+        final List<float[]> templates = new ArrayList<>();
+        final List<Integer> faceIds = new ArrayList<>();
+        final float[][] all = existing.toArray();
+        for (int i = 0; i < all.length; i++) {
+            if (existing.getFaceId(i) != faceId) {
+                templates.add(all[i]);
+                faceIds.add(existing.getFaceId(i));
+            }
+        }
+        final byte[] encoded =
+                FaceTemplates.encode(
+                        templates.toArray(new float[0][]),
+                        faceIds.stream().mapToInt(Integer::intValue).toArray());
+        return save(encoded) ? new int[] {faceId} : new int[0];
+    }
+
+    /** Whether the first templates stored are exactly {@code templates}, of the first face. */
+    private static boolean holds(FaceTemplates stored, float[][] templates) {
+        if (stored == null || stored.getCount() < templates.length) return false;
+        final float[] template = new float[stored.getDimension()];
+        for (int i = 0; i < templates.length; i++) {
+            stored.get(i, template);
+            if (stored.getFaceId(i) != FIRST_FACE_ID || !Arrays.equals(template, templates[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Replaces the stored templates. The file is only replaced once the new one is completely
+     * written.
+     */
+    private boolean save(byte[] encoded) {
+        try (FileOutputStream out = new FileOutputStream(mTempFile)) {
+            out.write(encoded);
+            out.getFD().sync();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write face templates", e);
+            mTempFile.delete();
+            return false;
+        }
+        if (!mTempFile.renameTo(mFile)) {
+            Log.e(TAG, "Failed to replace face templates");
+            mTempFile.delete();
+            return false;
+        }
+        mLoaded = false;
+        return true;
+    }
+
+    /**
+     * Converts templates enrolled with an older version: text stored by {@link
+     * DirectoryFaceStorageBackend}, or a version 1 file without face ids. They become face {@link
+     * #FIRST_FACE_ID}.
+     *
+     * @param name Name the text templates were registered under
+     */
+    synchronized void migrate(String name) {
+        final FaceTemplates stored = load();
+        if (stored != null && stored.getFaceId(0) == 0) {
+            final int[] faceIds = new int[stored.getCount()];
+            Arrays.fill(faceIds, FIRST_FACE_ID);
+            if (save(FaceTemplates.encode(stored.toArray(), faceIds))) {
+                Log.i(TAG, "Assigned face id to " + faceIds.length + " face templates");
+            }
+        }
+
+        final File legacyDir = new File(mFile.getParentFile(), LEGACY_DIR_NAME);
+        if (!legacyDir.isDirectory()) return;
+        final FaceStorageBackend legacy = new DirectoryFaceStorageBackend(legacyDir);
+        if (legacy.getNames().contains(name)) {
+            final float[][] templates = legacy.get(name);
+            if (templates != null && templates.length > 0) {
+                if (!mFile.exists()) {
+                    final int[] faceIds = new int[templates.length];
+                    Arrays.fill(faceIds, FIRST_FACE_ID);
+                    if (!save(FaceTemplates.encode(templates, faceIds))) return;
+                }
+                // The legacy templates are the only copy until the new file reads back the same.
+                if (!holds(load(), templates)) {
+                    Log.e(TAG, "Migrated face templates don't read back, keeping the old ones");
+                    return;
+                }
+                Log.i(TAG, "Migrated " + templates.length + " face templates");
+            }
+            legacy.delete(name);
+        }
+        if (!legacyDir.delete() && DEBUG) {
+            Log.d(TAG, "legacy face directory not empty, keeping it");
+        }
+    }
+}
@@ -20,6 +20,7 @@ import static com.libremobileos.faceunlock.client.FaceUnlockManager.SERVICE_NAME
 
 import android.content.Context;
 import android.content.om.IOverlayManager;
+import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
 import android.hardware.biometrics.face.V1_0.FaceAcquiredInfo;
 import android.hardware.biometrics.face.V1_0.FaceError;
@@ -32,6 +33,8 @@ import android.os.Looper;
 import android.os.Message;
 import android.os.RemoteException;
 import android.os.ServiceManager;
+import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.util.Base64;
 import android.util.Log;
 import android.util.Size;
@@ -39,22 +42,23 @@ import android.util.Size;
 import com.libremobileos.faceunlock.client.IFaceHalService;
 import com.libremobileos.faceunlock.client.IFaceHalServiceCallback;
 import com.libremobileos.faceunlock.client.IFaceUnlockManager;
-import com.libremobileos.yifan.face.DirectoryFaceStorageBackend;
+import com.libremobileos.faceunlock.common.FaceTemplates;
 import com.libremobileos.yifan.face.FaceDataEncoder;
-import com.libremobileos.yifan.face.FaceRecognizer;
-import com.libremobileos.yifan.face.FaceStorageBackend;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.FileDescriptor;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.util.List;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Random;
 
 public class FaceUnlockServer {
@@ -64,24 +68,57 @@ public class FaceUnlockServer {
             "com.libremobileos.faceunlock.settings.overlay";
     private static final String FACE = "Face"; // used to store face in backend
     private static final int MSG_CHALLENGE_TIMEOUT = 100;
+    private static final int MSG_ACQUIRED = 101;
+    // How long the camera session stays warm after an attempt ends, for a quick re-authentication.
+    private static final long WARM_CAMERA_TIMEOUT_MS = 5000;
+    // Frames older than this when they arrive are dropped while the recognizer is busy, see
+    // CameraService.setStaleFrameBudget. Overridden by PROP_STALE_FRAME_BUDGET_MS, 0 keeps all.
+    private static final long STALE_FRAME_BUDGET_MS = 100;
+    private static final String PROP_STALE_FRAME_BUDGET_MS =
+            "persist.faceunlock.stale_frame_budget_ms";
+    // Largest distance of a face to an enrolled template to match it, and how many templates it
+    // has to match. In secure mode we are very strict at distance, so one template is enough.
+    private static final float MAX_DISTANCE = 0.7f;
+    private static final int MIN_MODEL_COUNT = 2;
+    private static final float SECURE_MAX_DISTANCE = 0.5f;
+    private static final int SECURE_MIN_MODEL_COUNT = 1;
+    // Whether to match against int8 templates, see the --match-bench dump. Read whenever the
+    // templates are reloaded.
+    private static final String PROP_QUANTIZED_MATCHING = "persist.faceunlock.quantized_matching";
+    // Steady state frames counted by the --alloc-check dump.
+    private static final int ALLOCATION_CHECK_FRAMES = 50;
+    // Recognizers kept for different stream sizes and orientations. They share the models, so each
+    // only holds buffers of its frame size.
+    private static final int RECOGNIZER_CACHE_SIZE = 4;
     private static final int DEFAULT_FEATURES =
             (int) Math.pow(2, Feature.REQUIRE_ATTENTION)
                     | (int) Math.pow(2, Feature.REQUIRE_DIVERSITY);
 
     private final long kDeviceId = 123; // Arbitrary value.
-    private final int kFaceId = 100; // Arbitrary value.
 
     private IFaceHalServiceCallback mCallback;
     private FaceHandler mWorkHandler;
     private Context mContext;
     private long mChallenge = 0;
     private int mChallengeCount = 0;
-    private boolean mComputingDetection = false;
     private CameraService mCameraService;
+    private final LatencyStats mLatencyStats = new LatencyStats();
     private int mUserId = 0;
     private String mStorePath = "/data/vendor_de/0/facedata";
-    private FaceStorageBackend faceStorage = null;
-    private boolean mAuthenticating = false;
+    // Decoded HATs of the enrolled faces by face id, so a match doesn't have to read them from
+    // flash. Replaced rather than modified, under mHatsLock.
+    private volatile Map<Integer, byte[]> mHats = Collections.emptyMap();
+    private final Object mHatsLock = new Object();
+    // Id the face of the current enrollment is stored under, reserved when it starts so progress
+    // reports the id that is kept, -1 if none. Finishing the enrollment again replaces the face
+    // rather than adding another. Written on the work handler, and when the user changes.
+    private volatile int mEnrollFaceId = -1;
+    private FaceTemplateStore faceStorage = null;
+    private volatile boolean mAuthenticating = false;
+    // When the current attempt started and when its first frame was captured, for the end to end
+    // latency. In the SystemClock.elapsedRealtimeNanos time base, 0 if not known yet.
+    private volatile long mAuthenticateTimeNs = 0;
+    private volatile long mFirstFrameTimeNs = 0;
     private boolean isTimerTicking = false;
     private boolean lockedPermanently = false;
     private int features = DEFAULT_FEATURES;
@@ -89,6 +126,25 @@ public class FaceUnlockServer {
     private boolean shouldLockPermanent = false;
     // TODO make this configurable?
     private boolean lowMemoryMode = false;
+    // Start unlocking on small frames, only switching to larger ones for small or blurry faces.
+    private boolean adaptiveResolution = true;
+    // The face models, loaded on the work handler by the first recognizer that needs them.
+    private volatile FaceModels mModels = null;
+    // Recognizers by configuration, least recently used first. Guarded by itself.
+    private final LinkedHashMap<String, TrackingFaceRecognizer> mRecognizers =
+            new LinkedHashMap<String, TrackingFaceRecognizer>(
+                    RECOGNIZER_CACHE_SIZE, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<String, TrackingFaceRecognizer> eldest) {
+                    return size() > (lowMemoryMode ? 1 : RECOGNIZER_CACHE_SIZE);
+                }
+            };
+    // Bumped whenever the enrolled faces change, recognizers only see the faces they were
+    // created with.
+    private volatile int mStorageVersion = 0;
+    // Enrolled templates of the active user, ready for matching. Null if there are none.
+    private volatile EmbeddingMatrix mEmbeddings = null;
 
     private final IBinder mFaceUnlockHalBinder =
             new IFaceHalService.Stub() {
@@ -125,17 +181,15 @@ public class FaceUnlockServer {
 
                     mUserId = userId;
                     mStorePath = storePath;
-                    File facesDir = new File(mStorePath + "/faces");
-                    if (!facesDir.exists()) {
-                        facesDir.mkdir();
-                    }
 
                     // Store registered Faces
-                    // example for in-memory: FaceStorageBackend faceStorage = new
-                    // VolatileFaceStorageBackend();
-                    // example for shared preferences: FaceStorageBackend faceStorage = new
-                    // SharedPreferencesFaceStorageBackend(getSharedPreferences("faces", 0));
-                    faceStorage = new DirectoryFaceStorageBackend(new File(mStorePath + "/faces"));
+                    final FaceTemplateStore storage = new FaceTemplateStore(mStorePath);
+                    storage.migrate(FACE);
+                    faceStorage = storage;
+                    mEnrollFaceId = -1;
+                    // Cached recognizers still use the previous storage.
+                    invalidateRecognizers();
+                    loadHats();
 
                     try {
                         String str =
@@ -167,6 +221,12 @@ public class FaceUnlockServer {
                 public int enroll(byte[] hat, int timeoutSec, int[] disabledFeatures) {
                     if (DEBUG) Log.d(TAG, "enroll");
 
+                    // Reserve the id after the faces stored by earlier enrollments, and before the
+                    // progress and finishEnroll of this one, which post too.
+                    mWorkHandler.post(
+                            () ->
+                                    mEnrollFaceId =
+                                            faceStorage != null ? faceStorage.nextFaceId() : -1);
                     return Status.OK;
                 }
 
@@ -260,11 +320,11 @@ public class FaceUnlockServer {
 
                     mWorkHandler.post(
                             () -> {
-                                int[] faceIds = new int[1];
-                                if (faceStorage != null && faceStorage.getNames().contains(FACE)) {
-                                    faceIds[0] = kFaceId;
-                                    if (DEBUG) Log.d(TAG, "enumerate face added");
-                                }
+                                int[] faceIds =
+                                        faceStorage != null ? faceStorage.getFaceIds() : new int[0];
+                                if (DEBUG) Log.d(TAG, "enumerate " + Arrays.toString(faceIds));
+                                // An empty list is reported as a single face id 0.
+                                if (faceIds.length == 0) faceIds = new int[1];
                                 if (mCallback != null) {
                                     try {
                                         mCallback.onEnumerate(kDeviceId, faceIds, mUserId);
@@ -283,17 +343,25 @@ public class FaceUnlockServer {
 
                     mWorkHandler.post(
                             () -> {
-                                int[] faceIds = new int[1];
-                                if ((faceId == kFaceId || faceId == 0)
-                                        && faceStorage != null
-                                        && faceStorage.getNames().contains(FACE)) {
-                                    if (faceStorage.delete(FACE)) {
-                                        File f = new File(mStorePath, ".FACE_HAT");
-                                        if (f.exists()) {
-                                            f.delete();
+                                int[] faceIds =
+                                        faceStorage != null
+                                                ? faceStorage.remove(faceId)
+                                                : new int[0];
+                                if (faceIds.length > 0) {
+                                    invalidateRecognizers();
+                                    synchronized (mHatsLock) {
+                                        final Map<Integer, byte[]> hats = new HashMap<>(mHats);
+                                        for (int id : faceIds) {
+                                            hats.remove(id);
+                                            File f = hatFile(id);
+                                            if (f.exists()) {
+                                                f.delete();
+                                            }
                                         }
+                                        mHats = hats;
                                     }
-                                    faceIds[0] = kFaceId;
+                                } else {
+                                    faceIds = new int[1];
                                 }
                                 if (mCallback != null) {
                                     try {
@@ -302,6 +370,8 @@ public class FaceUnlockServer {
                                         e.printStackTrace();
                                     }
                                 }
+                                // The features are per user, keep them while a face remains.
+                                if (faceStorage != null && faceStorage.hasTemplates()) return;
                                 features = DEFAULT_FEATURES;
                                 try {
                                     Files.write(
@@ -316,6 +386,8 @@ public class FaceUnlockServer {
 
                 @Override
                 public int authenticate(long operationId) {
+                    mAuthenticateTimeNs = SystemClock.elapsedRealtimeNanos();
+                    mFirstFrameTimeNs = 0;
                     if (DEBUG) Log.d(TAG, "authenticate " + operationId);
                     if (mAuthenticating) Log.e(TAG, "authenticating twice");
                     if (lockedPermanently) {
@@ -370,187 +442,268 @@ public class FaceUnlockServer {
 
                     return Status.OK;
                 }
+
+                @Override
+                protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+                    if (mContext.checkCallingOrSelfPermission(android.Manifest.permission.DUMP)
+                            != PackageManager.PERMISSION_GRANTED) {
+                        pw.println("Permission Denial: can't dump faceunlockhal");
+                        return;
+                    }
+                    pw.println(
+                            "FaceUnlockServer: authenticating="
+                                    + mAuthenticating
+                                    + " lowMemoryMode="
+                                    + lowMemoryMode);
+                    final EmbeddingMatrix embeddings = mEmbeddings;
+                    pw.println("Enrolled: " + (embeddings != null ? embeddings : "none"));
+                    mCameraService.dump(pw);
+                    mLatencyStats.dump(pw);
+                    final String command = args != null && args.length > 0 ? args[0] : "";
+                    if ("--reset".equals(command)) {
+                        mLatencyStats.reset();
+                        pw.println("Latency stats reset");
+                    } else if ("--alloc-check".equals(command)) {
+                        mCameraService.startAllocationCheck(ALLOCATION_CHECK_FRAMES);
+                        pw.println(
+                                "Counting allocations of the next "
+                                        + ALLOCATION_CHECK_FRAMES
+                                        + " frames, dump again after unlocking");
+                    } else if ("--convert-bench".equals(command)) {
+                        mCameraService.dumpConvertBenchmark(pw);
+                    } else if ("--match-bench".equals(command)) {
+                        final FaceTemplateStore storage = faceStorage;
+                        MatchBenchmark.dump(
+                                pw,
+                                storage != null ? storage.load() : null,
+                                new float[] {MAX_DISTANCE, SECURE_MAX_DISTANCE},
+                                new int[] {MIN_MODEL_COUNT, SECURE_MIN_MODEL_COUNT});
+                    }
+                }
             };
 
     final CameraService.CameraCallback faceCallback =
             new CameraService.CameraCallback() {
-                private FaceRecognizer mFaceRecognizer = null;
-                private String lastStore = null;
-                private Size lastSize = null;
-                private Integer lastRotation = null;
-                private Boolean lastSecure = null;
+                private volatile TrackingFaceRecognizer mFaceRecognizer = null;
+                // Configuration the recognizer is wanted for, mFaceRecognizer matches it or is null.
+                private volatile String mRecognizerKey = null;
 
                 @Override
                 public void setupFaceRecognizer(final Size bitmapSize, int rotation) {
-                    final boolean secureMode =
-                            (features & (int) Math.pow(2, Feature.REQUIRE_ATTENTION)) > 0;
-                    if (mFaceRecognizer != null
-                            && (lastSize == null
-                                    || lastRotation == null
-                                    || lastSecure == null
-                                    || lastStore == null
-                                    || !lastSize.equals(bitmapSize)
-                                    || !lastRotation.equals(rotation)
-                                    || !lastSecure.equals(secureMode)
-                                    || !lastStore.equals(mStorePath))) {
-                        if (DEBUG) {
-                            Log.d(TAG, "nuked face recognizer: ");
-                            Log.d(TAG, "lastSize == null: " + (lastSize == null));
-                            Log.d(TAG, "lastRotation == null: " + (lastRotation == null));
-                            Log.d(TAG, "lastSecure == null: " + (lastSecure == null));
-                            Log.d(TAG, "lastStore == null: " + (lastStore == null));
-                            Log.d(TAG, "!lastSize.equals(bitmapSize): " + (!lastSize.equals(bitmapSize)));
-                            Log.d(TAG, "!lastRotation.equals(rotation): " + (!lastRotation.equals(rotation)));
-                            Log.d(TAG, "!lastSecure.equals(secureMode): " + (!lastSecure.equals(secureMode)));
-                            Log.d(TAG, "!lastStore.equals(mStorePath): " + (!lastStore.equals(mStorePath)));
-                        }
-                        mFaceRecognizer = null;
-                    }
                     if (faceStorage == null) {
                         Log.w(TAG, "tried to unlock with null storage");
                         return;
                     }
+                    final String key =
+                            bitmapSize
+                                    + "/"
+                                    + rotation
+                                    + "/"
+                                    + mStorePath
+                                    + "/"
+                                    + mStorageVersion;
+                    final TrackingFaceRecognizer current = mFaceRecognizer;
+                    if (key.equals(mRecognizerKey) && current != null) {
+                        // New session, don't follow a face from the last one.
+                        current.reset();
+                        return;
+                    }
+                    mRecognizerKey = key;
+                    TrackingFaceRecognizer cached;
+                    synchronized (mRecognizers) {
+                        cached = mRecognizers.get(key);
+                    }
+                    mFaceRecognizer = cached;
+                    if (cached != null) {
+                        if (DEBUG) Log.d(TAG, "reusing FaceRecognizer for " + key);
+                        cached.reset();
+                        return;
+                    }
                     // Create AI-based face detection
-                    if (mFaceRecognizer == null) {
-                        // Note: we create FaceRecognizer on WorkHandler and initialize Camera on
-                        // cam thread at the same time
-                        mWorkHandler.post(
-                                () -> {
-                                    if (DEBUG)
-                                        Log.d(
-                                                TAG,
-                                                "creating FaceRecognizer, secureMode="
-                                                        + secureMode);
-                                    mFaceRecognizer =
-                                            FaceRecognizer.create(
-                                                    mContext,
-                                                    faceStorage, /* face data storage */
-                                                    0.6f, /* minimum confidence to consider object as face */
+                    // Note: we create FaceRecognizer on WorkHandler and initialize Camera on
+                    // cam thread at the same time
+                    final FaceTemplateStore storage = faceStorage;
+                    final EmbeddingMatrix embeddings = mEmbeddings;
+                    mWorkHandler.post(
+                            () -> {
+                                TrackingFaceRecognizer recognizer;
+                                synchronized (mRecognizers) {
+                                    recognizer = mRecognizers.get(key);
+                                }
+                                if (recognizer == null) {
+                                    if (!key.equals(mRecognizerKey)) {
+                                        // Configuration changed again before we got to it.
+                                        return;
+                                    }
+                                    if (DEBUG) Log.d(TAG, "creating FaceRecognizer for " + key);
+                                    final FaceModels models = loadModels();
+                                    if (models == null) return;
+                                    recognizer =
+                                            TrackingFaceRecognizer.create(
+                                                    models,
+                                                    embeddings, /* enrolled templates */
                                                     bitmapSize.getWidth(), /* bitmap width */
-                                                    bitmapSize.getHeight(), /* bitmap height */
-                                                    rotation,
-                                                    secureMode
-                                                            ? 0.5f
-                                                            : 0.7f, /* maximum distance (to saved face model, not from camera) to track face */
-                                                    secureMode
-                                                            ? 1 /* in secure mode we are very strict at distance, need to calm down here */
-                                                            : 2, /* minimum model count to track face */
-                                                    false,
-                                                    false,
-                                                    4);
+                                                    bitmapSize.getHeight() /* bitmap height */);
                                     if (DEBUG) Log.d(TAG, "done creating FaceRecognizer async");
-                                });
-                        if (!lowMemoryMode) {
-                            lastSize = bitmapSize;
-                            lastRotation = rotation;
-                            lastSecure = secureMode;
-                            lastStore = mStorePath;
-                        }
-                    }
+                                    if (storage != faceStorage) {
+                                        // Active user changed meanwhile, don't cache it.
+                                        return;
+                                    }
+                                    synchronized (mRecognizers) {
+                                        mRecognizers.put(key, recognizer);
+                                    }
+                                }
+                                if (key.equals(mRecognizerKey)) {
+                                    mFaceRecognizer = recognizer;
+                                }
+                            });
                 }
 
                 @Override
-                public void processImage(
-                        Size previewSize, Size rotatedSize, Bitmap rgbBitmap, int rotation) {
-                    if (DEBUG) Log.d(TAG, "processImage");
-                    if (mComputingDetection) {
-                        Log.e(TAG, "mComputingDetection true in non-reentrant method?");
-                        mCameraService.readyForNextImage();
-                        return;
+                public void onFirstFrame(long timestampNs) {
+                    if (!mAuthenticating || mFirstFrameTimeNs != 0) return;
+                    mFirstFrameTimeNs = timestampNs;
+                    mLatencyStats.record(
+                            LatencyStats.AUTH_TO_FIRST_FRAME, timestampNs - mAuthenticateTimeNs);
+                }
+
+                @Override
+                public int detectFace(
+                        Bitmap rgbBitmap,
+                        TrackingFaceRecognizer.Detection detection,
+                        long timestampNs) {
+                    if (DEBUG) Log.d(TAG, "detectFace");
+                    if (!mAuthenticating) {
+                        if (DEBUG) Log.d(TAG, "not authenticating, skipping frame");
+                        return DETECTION_SKIPPED;
                     }
-                    if (mFaceRecognizer == null) {
+                    final TrackingFaceRecognizer faceRecognizer = mFaceRecognizer;
+                    if (faceRecognizer == null) {
                         if (DEBUG) Log.d(TAG, "still creating mFaceRecognizer");
-                        mCameraService.readyForNextImage();
+                        return DETECTION_SKIPPED;
+                    }
+                    final long detectStartNs = SystemClock.elapsedRealtimeNanos();
+                    if (!faceRecognizer.detect(rgbBitmap, detection)) {
+                        if (DEBUG) Log.d(TAG, "frame doesn't fit the recognizer, skipping");
+                        return DETECTION_SKIPPED;
+                    }
+                    final long detectEndNs = SystemClock.elapsedRealtimeNanos();
+                    mLatencyStats.record(LatencyStats.DETECT, detectEndNs - detectStartNs);
+                    if (detection.faces < 1) {
+                        if (DEBUG) Log.d(TAG, "Found no faces");
+                        notifyAcquired(FaceAcquiredInfo.NOT_DETECTED);
+                        return DETECTION_NO_FACE;
+                    } else if (detection.faces > 1) {
+                        if (DEBUG) Log.d(TAG, "Found " + detection.faces + " faces, expected 1");
+                        notifyAcquired(FaceAcquiredInfo.FACE_OBSCURED);
+                        return DETECTION_NO_FACE;
+                    }
+                    if (DEBUG) Log.d(TAG, "Found 1 face, tracked=" + detection.tracked);
+                    return DETECTION_FACE;
+                }
+
+                @Override
+                public void recognizeFace(
+                        Bitmap rgbBitmap,
+                        TrackingFaceRecognizer.Detection detection,
+                        long timestampNs) {
+                    if (DEBUG) Log.d(TAG, "recognizeFace");
+                    if (!mAuthenticating) {
+                        if (DEBUG) Log.d(TAG, "not authenticating, skipping frame");
                         return;
                     }
-                    mComputingDetection = true;
-                    final List<FaceRecognizer.Face> data = mFaceRecognizer.recognize(rgbBitmap);
+                    // Secure mode only makes matching stricter, the models stay the same.
+                    final boolean secureMode =
+                            (features & (int) Math.pow(2, Feature.REQUIRE_ATTENTION)) > 0;
+                    final long recognizeStartNs = SystemClock.elapsedRealtimeNanos();
+                    // The recognizer that found the face, even if another one took over since.
+                    final TrackingFaceRecognizer.Result face =
+                            detection.recognizer.recognize(
+                                    rgbBitmap,
+                                    detection,
+                                    secureMode ? SECURE_MAX_DISTANCE : MAX_DISTANCE,
+                                    secureMode ? SECURE_MIN_MODEL_COUNT : MIN_MODEL_COUNT);
+                    final long matchTimeNs = SystemClock.elapsedRealtimeNanos();
+                    mLatencyStats.record(
+                            LatencyStats.RECOGNIZE, matchTimeNs - recognizeStartNs);
 
-                    if (data != null && mCallback != null) {
-                        try {
-                            if (data.size() < 1) {
-                                if (DEBUG) Log.d(TAG, "Found no faces");
-                                mCallback.onAcquired(
-                                        kDeviceId, mUserId, FaceAcquiredInfo.NOT_DETECTED, 0);
-                            } else if (data.size() > 1) {
-                                if (DEBUG)
-                                    Log.d(TAG, "Found " + data.size() + " faces, expected 1");
-                                mCallback.onAcquired(
-                                        kDeviceId, mUserId, FaceAcquiredInfo.FACE_OBSCURED, 0);
+                    if (mCallback != null) {
+                        if (!face.found) {
+                            if (DEBUG) Log.d(TAG, "Lost the face");
+                            notifyAcquired(FaceAcquiredInfo.NOT_DETECTED);
+                        } else {
+                            if (face.brightnessHint < 0) {
+                                if (DEBUG) Log.d(TAG, "Skipping face due to bad light conditions");
+                                notifyAcquired(FaceAcquiredInfo.INSUFFICIENT);
                             } else {
-                                if (DEBUG) Log.d(TAG, "Found 1 face");
-                                FaceRecognizer.Face face = data.get(0);
-                                if (face.getBrightnessHint() < 0) {
-                                    if (DEBUG)
-                                        Log.d(TAG, "Skipping face due to bad light conditions");
-                                    mCallback.onAcquired(
-                                            kDeviceId, mUserId, FaceAcquiredInfo.INSUFFICIENT, 0);
-                                } else {
-                                    mCallback.onAcquired(
-                                            kDeviceId, mUserId, FaceAcquiredInfo.GOOD, 0);
-                                    // Do we have any match?
-                                    if (face.isRecognized()) {
-                                        File f = new File(mStorePath, ".FACE_HAT");
-                                        try {
-                                            if (!f.exists()) {
-                                                throw new IOException("f.exists() == false");
-                                            }
-                                            if (!f.canRead()) {
-                                                throw new IOException("f.canRead() == false");
-                                            }
-                                            try (InputStream inputStream = new FileInputStream(f)) {
-                                                // https://stackoverflow.com/a/35446009
-                                                ByteArrayOutputStream result =
-                                                        new ByteArrayOutputStream();
-                                                byte[] buffer = new byte[1024];
-                                                for (int length;
-                                                        (length = inputStream.read(buffer))
-                                                                != -1; ) {
-                                                    result.write(buffer, 0, length);
-                                                }
-                                                // ignore the warning, api 33-only stuff right there
-                                                // :D
-                                                String base64hat =
-                                                        result.toString(
-                                                                StandardCharsets.UTF_8.name());
-                                                byte[] hat =
-                                                        Base64.decode(base64hat, Base64.URL_SAFE);
-                                                isTimerTicking = false;
-                                                lockOutTimer.cancel();
-                                                mAuthenticating = false;
-                                                mCallback.onAuthenticated(
-                                                        kDeviceId, kFaceId, mUserId, hat);
-                                                mCameraService.closeCamera();
-                                                if (DEBUG)
-                                                    Log.d(
-                                                            TAG,
-                                                            "authenticated successfully! distance ="
-                                                                + " "
-                                                                    + face.getDistance());
-                                            }
-                                        } catch (IOException e) {
-                                            Log.e("Authentication", Log.getStackTraceString(e));
-                                        }
+                                notifyAcquired(FaceAcquiredInfo.GOOD);
+                                // Do we have any match?
+                                if (face.recognized) {
+                                    mLatencyStats.record(
+                                            LatencyStats.FRAME_TO_MATCH, matchTimeNs - timestampNs);
+                                    if (mFirstFrameTimeNs != 0) {
+                                        mLatencyStats.record(
+                                                LatencyStats.FIRST_FRAME_TO_MATCH,
+                                                matchTimeNs - mFirstFrameTimeNs);
+                                    }
+                                    final byte[] hat = mHats.get(face.faceId);
+                                    if (hat == null) {
+                                        Log.e(
+                                                "Authentication",
+                                                "no HAT for enrolled face " + face.faceId);
                                     } else {
-                                        if (DEBUG) Log.d(TAG, "Skipping face because no match");
+                                        // Don't evaluate any more frames for this attempt.
+                                        mAuthenticating = false;
+                                        notifyAuthenticated(face.faceId, hat, matchTimeNs);
+                                        if (DEBUG)
+                                            Log.d(
+                                                    TAG,
+                                                    "authenticated successfully! face = "
+                                                            + face.faceId
+                                                            + " distance = "
+                                                            + face.distance);
                                     }
+                                } else {
+                                    if (DEBUG) Log.d(TAG, "Skipping face because no match");
                                 }
                             }
-                        } catch (RemoteException e) {
-                            e.printStackTrace();
                         }
                     } else {
-                        if (DEBUG)
-                            Log.d(
-                                    TAG,
-                                    "data == null? "
-                                            + (data == null)
-                                            + " mCallback == null? "
-                                            + (mCallback == null));
+                        if (DEBUG) Log.d(TAG, "mCallback == null");
                     }
+                }
 
-                    mComputingDetection = false;
-                    mCameraService.readyForNextImage();
+                @Override
+                public void onFrameRejected(int acquiredInfo) {
+                    if (!mAuthenticating) return;
+                    notifyAcquired(acquiredInfo);
+                }
+
+                // Results are reported from the work handler, so the inference threads can move on
+                // to the next frame right away.
+                private void notifyAcquired(int acquiredInfo) {
+                    // A message rather than a lambda, as this is called for every frame.
+                    mWorkHandler.obtainMessage(MSG_ACQUIRED, acquiredInfo, 0).sendToTarget();
+                }
+
+                private void notifyAuthenticated(int faceId, byte[] hat, long matchTimeNs) {
+                    mWorkHandler.post(
+                            () -> {
+                                isTimerTicking = false;
+                                lockOutTimer.cancel();
+                                try {
+                                    mCallback.onAuthenticated(kDeviceId, faceId, mUserId, hat);
+                                } catch (RemoteException e) {
+                                    e.printStackTrace();
+                                }
+                                final long callbackTimeNs = SystemClock.elapsedRealtimeNanos();
+                                mLatencyStats.record(
+                                        LatencyStats.DISPATCH, callbackTimeNs - matchTimeNs);
+                                mLatencyStats.record(
+                                        LatencyStats.AUTH_TO_CALLBACK,
+                                        callbackTimeNs - mAuthenticateTimeNs);
+                                mCameraService.closeCamera();
+                            });
                 }
 
                 @Override
@@ -558,10 +711,11 @@ public class FaceUnlockServer {
                     // Avoid memory leak.
                     if (lowMemoryMode) {
                         mFaceRecognizer = null;
-                        lastStore = null;
-                        lastSize = null;
-                        lastRotation = null;
-                        lastSecure = null;
+                        mRecognizerKey = null;
+                        synchronized (mRecognizers) {
+                            mRecognizers.clear();
+                        }
+                        mModels = null;
                     }
                 }
             };
@@ -605,6 +759,13 @@ public class FaceUnlockServer {
             if (message.what == MSG_CHALLENGE_TIMEOUT) {
                 mChallenge = 0;
                 mChallengeCount = 0;
+            } else if (message.what == MSG_ACQUIRED) {
+                if (mCallback == null) return;
+                try {
+                    mCallback.onAcquired(kDeviceId, mUserId, message.arg1, 0);
+                } catch (RemoteException e) {
+                    e.printStackTrace();
+                }
             }
         }
     }
@@ -613,12 +774,18 @@ public class FaceUnlockServer {
             Context context, Looper serviceThreadLooper, BinderPublishCallback bpc) {
         mContext = context;
         mUserId = 0;
-        File facesDir = new File(mStorePath + "/faces");
-        if (!facesDir.exists()) {
-            facesDir.mkdir();
-        }
         mWorkHandler = new FaceHandler(serviceThreadLooper);
-        mCameraService = new CameraService(mContext, faceCallback);
+        final FrameSource replaySource = ReplayFrameSource.fromSystemProperties();
+        if (replaySource != null) {
+            mCameraService =
+                    new CameraService(mContext, faceCallback, mLatencyStats, replaySource);
+        } else {
+            mCameraService = new CameraService(mContext, faceCallback, mLatencyStats);
+        }
+        mCameraService.setWarmSessionTimeout(lowMemoryMode ? 0 : WARM_CAMERA_TIMEOUT_MS);
+        mCameraService.setStaleFrameBudget(
+                SystemProperties.getLong(PROP_STALE_FRAME_BUDGET_MS, STALE_FRAME_BUDGET_MS));
+        mCameraService.setAdaptiveResolution(adaptiveResolution);
         mCameraService.startBackgroundThread();
 
         bpc.publishBinderService(SERVICE_NAME, mFaceUnlockManagerBinder);
@@ -630,9 +797,20 @@ public class FaceUnlockServer {
 
                 @Override
                 public void enrollResult(int remaining) throws RemoteException {
-                    if (mCallback != null) {
-                        mCallback.onEnrollResult(kDeviceId, kFaceId, mUserId, remaining);
-                    }
+                    // After enroll reserved the id of the face.
+                    mWorkHandler.post(
+                            () -> {
+                                if (mCallback == null) return;
+                                final int faceId =
+                                        mEnrollFaceId != -1
+                                                ? mEnrollFaceId
+                                                : FaceTemplateStore.FIRST_FACE_ID;
+                                try {
+                                    mCallback.onEnrollResult(kDeviceId, faceId, mUserId, remaining);
+                                } catch (RemoteException e) {
+                                    e.printStackTrace();
+                                }
+                            });
                 }
 
                 @Override
@@ -644,44 +822,131 @@ public class FaceUnlockServer {
 
                 @Override
                 public void finishEnroll(String encodedFaces, byte[] token) {
-                    boolean result = false;
-                    if (faceStorage != null) {
-                        result =
-                                faceStorage.register(
-                                        FACE, FaceDataEncoder.decode(encodedFaces), true);
-                    } else {
-                        Log.w(TAG, "tried to enroll with null storage");
-                    }
-                    if (result) {
-                        File f = new File(mStorePath, ".FACE_HAT");
-                        try {
-                            if (f.exists()) {
-                                f.delete();
-                            } else {
-                                if (!f.createNewFile())
-                                    throw new IOException("f.createNewFile() failed");
-                            }
-                            OutputStreamWriter hatOSW =
-                                    new OutputStreamWriter(new FileOutputStream(f));
-                            hatOSW.write(new String(Base64.encode(token, Base64.URL_SAFE)));
-                            hatOSW.close();
-                        } catch (IOException e) {
-                            Log.e(TAG, "Failed to write HAT", e);
-                            result = false;
-                        }
-                    }
+                    // Enrollment apps that still send the text encoding.
+                    byte[] templates = null;
                     try {
-                        if (!result) {
-                            mCallback.onError(kDeviceId, mUserId, FaceError.UNABLE_TO_PROCESS, 0);
-                        } else {
-                            mCallback.onEnrollResult(kDeviceId, kFaceId, mUserId, 0);
-                        }
-                    } catch (RemoteException e) {
-                        e.printStackTrace();
+                        templates = FaceTemplates.encode(FaceDataEncoder.decode(encodedFaces));
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, "Failed to decode faces", e);
                     }
+                    finishEnrollTemplates(templates, token);
+                }
+
+                @Override
+                public void finishEnrollTemplates(byte[] templates, byte[] token) {
+                    // Serialized with remove and enroll, which also change the enrolled faces.
+                    mWorkHandler.post(() -> saveEnrollment(templates, token));
                 }
             };
 
+    /**
+     * Stores the templates and HAT of the face being enrolled. Retrying the same enrollment
+     * replaces the face it already added. Called on the work handler.
+     */
+    private void saveEnrollment(byte[] templates, byte[] token) {
+        int faceId = -1;
+        if (faceStorage != null) {
+            if (templates != null) faceId = faceStorage.add(templates, mEnrollFaceId);
+            invalidateRecognizers();
+        } else {
+            Log.w(TAG, "tried to enroll with null storage");
+        }
+        boolean result = faceId != -1;
+        if (result) {
+            mEnrollFaceId = faceId;
+            File f = hatFile(faceId);
+            try {
+                if (f.exists()) {
+                    f.delete();
+                } else {
+                    if (!f.createNewFile()) throw new IOException("f.createNewFile() failed");
+                }
+                OutputStreamWriter hatOSW = new OutputStreamWriter(new FileOutputStream(f));
+                hatOSW.write(new String(Base64.encode(token, Base64.URL_SAFE)));
+                hatOSW.close();
+                synchronized (mHatsLock) {
+                    final Map<Integer, byte[]> hats = new HashMap<>(mHats);
+                    hats.put(faceId, token.clone());
+                    mHats = hats;
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to write HAT", e);
+                result = false;
+            }
+        }
+        try {
+            if (!result) {
+                mCallback.onError(kDeviceId, mUserId, FaceError.UNABLE_TO_PROCESS, 0);
+            } else {
+                mCallback.onEnrollResult(kDeviceId, faceId, mUserId, 0);
+            }
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /** File the HAT of a face is stored in, the first face keeps the name from before. */
+    private File hatFile(int faceId) {
+        return new File(
+                mStorePath,
+                faceId == FaceTemplateStore.FIRST_FACE_ID ? ".FACE_HAT" : ".FACE_HAT_" + faceId);
+    }
+
+    /** Reads the HATs of the enrolled faces of the active user. */
+    private void loadHats() {
+        final Map<Integer, byte[]> hats = new HashMap<>();
+        final FaceTemplateStore storage = faceStorage;
+        final int[] faceIds = storage != null ? storage.getFaceIds() : new int[0];
+        for (int faceId : faceIds) {
+            File f = hatFile(faceId);
+            if (!f.exists()) continue;
+            try {
+                final long readStartNs = SystemClock.elapsedRealtimeNanos();
+                String base64hat =
+                        new String(Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8);
+                hats.put(faceId, Base64.decode(base64hat, Base64.URL_SAFE));
+                mLatencyStats.record(
+                        LatencyStats.HAT_READ, SystemClock.elapsedRealtimeNanos() - readStartNs);
+            } catch (IOException | IllegalArgumentException e) {
+                Log.e(TAG, "Failed to read HAT of face " + faceId, e);
+            }
+        }
+        synchronized (mHatsLock) {
+            mHats = hats;
+        }
+    }
+
+    /**
+     * Returns the face models, loading them if no recognizer did yet. Called on the work handler.
+     *
+     * @return The models, or null if they don't take the input sizes frames are prepared for
+     */
+    private FaceModels loadModels() {
+        FaceModels models = mModels;
+        if (models == null) {
+            try {
+                models = FaceModels.load(mContext);
+            } catch (IllegalStateException e) {
+                // Frames would be sized for other models, don't unlock.
+                Log.wtf(TAG, "Face models don't fit", e);
+                return null;
+            }
+            mModels = models;
+        }
+        return models;
+    }
+
+    /** Reloads the templates and drops the cached recognizers after the enrolled faces changed. */
+    private void invalidateRecognizers() {
+        final FaceTemplateStore storage = faceStorage;
+        final boolean quantized = SystemProperties.getBoolean(PROP_QUANTIZED_MATCHING, false);
+        mEmbeddings = storage != null ? EmbeddingMatrix.from(storage.load(), quantized) : null;
+        mStorageVersion++;
+        synchronized (mRecognizers) {
+            mRecognizers.clear();
+        }
+    }
+
     public static interface BinderPublishCallback {
         public void publishBinderService(String name, IBinder binder);
     }
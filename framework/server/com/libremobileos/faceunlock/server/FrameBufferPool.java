@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2023 LibreMobileOS Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.libremobileos.faceunlock.server;
+
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Keeps the frame bitmaps, pixel buffers and plane copies of finished camera sessions, so the next
+ * unlock attempt doesn't have to allocate them again. Everything is dropped on memory pressure.
+ *
+ * <p>Thread safe.
+ */
+/* package-private */ final class FrameBufferPool implements ComponentCallbacks2 {
+
+    private static final String TAG = "FrameBufferPool";
+    private static final boolean DEBUG = FaceUnlockServer.DEBUG;
+
+    /**
+     * Buffers kept per type. Enough for the frames of both orientations, older ones are dropped
+     * first.
+     */
+    private static final int MAX_POOLED = 4;
+    /** Plane copies kept, the three planes of each frame of a session. */
+    private static final int MAX_POOLED_BYTES = 9;
+
+    private final ArrayDeque<Bitmap> mBitmaps = new ArrayDeque<>();
+    private final ArrayDeque<int[]> mPixels = new ArrayDeque<>();
+    private final ArrayDeque<byte[]> mBytes = new ArrayDeque<>();
+
+    /** Returns an ARGB_8888 bitmap of the given size, with undefined content. */
+    Bitmap obtainBitmap(int width, int height) {
+        synchronized (this) {
+            final Iterator<Bitmap> it = mBitmaps.descendingIterator();
+            while (it.hasNext()) {
+                final Bitmap bitmap = it.next();
+                if (bitmap.getWidth() == width && bitmap.getHeight() == height) {
+                    it.remove();
+                    return bitmap;
+                }
+            }
+        }
+        return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    /** Returns an int buffer of the given length, with undefined content. */
+    int[] obtainPixels(int length) {
+        synchronized (this) {
+            final Iterator<int[]> it = mPixels.descendingIterator();
+            while (it.hasNext()) {
+                final int[] pixels = it.next();
+                if (pixels.length == length) {
+                    it.remove();
+                    return pixels;
+                }
+            }
+        }
+        return new int[length];
+    }
+
+    /** Returns a byte buffer of the given length, with undefined content. */
+    byte[] obtainBytes(int length) {
+        synchronized (this) {
+            final Iterator<byte[]> it = mBytes.descendingIterator();
+            while (it.hasNext()) {
+                final byte[] bytes = it.next();
+                if (bytes.length == length) {
+                    it.remove();
+                    return bytes;
+                }
+            }
+        }
+        return new byte[length];
+    }
+
+    /** Gives a bitmap back to the pool. It must not be used by the caller afterwards. */
+    synchronized void recycle(Bitmap bitmap) {
+        if (bitmap == null) return;
+        mBitmaps.addLast(bitmap);
+        if (mBitmaps.size() > MAX_POOLED) {
+            mBitmaps.removeFirst().recycle();
+        }
+    }
+
+    /** Gives a pixel buffer back to the pool. It must not be used by the caller afterwards. */
+    synchronized void recycle(int[] pixels) {
+        if (pixels == null) return;
+        mPixels.addLast(pixels);
+        if (mPixels.size() > MAX_POOLED) {
+            mPixels.removeFirst();
+        }
+    }
+
+    /** Gives a byte buffer back to the pool. It must not be used by the caller afterwards. */
+    synchronized void recycle(byte[] bytes) {
+        if (bytes == null) return;
+        mBytes.addLast(bytes);
+        if (mBytes.size() > MAX_POOLED_BYTES) {
+            mBytes.removeFirst();
+        }
+    }
+
+    /** Drops all pooled buffers. */
+    synchronized void clear() {
+        if (DEBUG) {
+            Log.d(
+                    TAG,
+                    "clearing "
+                            + mBitmaps.size()
+                            + " bitmaps, "
+                            + (mPixels.size() + mBytes.size())
+                            + " buffers");
+        }
+        for (Bitmap bitmap : mBitmaps) {
+            bitmap.recycle();
+        }
+        mBitmaps.clear();
+        mPixels.clear();
+        mBytes.clear();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            clear();
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        clear();
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {}
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2023 LibreMobileOS Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.libremobileos.faceunlock.server;
+
+import android.hardware.biometrics.face.V1_0.FaceAcquiredInfo;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Cheap check on the Y plane of a frame, rejecting frames that are too dark, too bright or too
+ * blurry to be worth running the face detector and embedding model on.
+ *
+ * <p>Only a sparse grid of pixels is sampled. The thresholds are deliberately loose: a frame that
+ * passes is not guaranteed to be usable, but a rejected one would not have produced a match.
+ */
+/* package-private */ final class FrameQualityGate {
+
+    // Distance between sampled pixels, in both directions.
+    private static final int SAMPLE_STEP = 8;
+    // Luma at or below / at or above which a pixel counts as clipped.
+    private static final int CLIPPED_DARK = 16;
+    private static final int CLIPPED_BRIGHT = 250;
+
+    private static final float MIN_MEAN_LUMA = 30f;
+    private static final float MAX_MEAN_LUMA = 225f;
+    private static final float MAX_CLIPPED_RATIO = 0.6f;
+    // Mean absolute difference between neighbouring pixels, flat or heavily blurred frames are
+    // far below this.
+    private static final float MIN_SHARPNESS = 1.5f;
+
+    /** Mean luma of the last checked frame. */
+    float meanLuma;
+    /** Fraction of clipped dark pixels in the last checked frame. */
+    float darkRatio;
+    /** Fraction of clipped bright pixels in the last checked frame. */
+    float brightRatio;
+    /** Sharpness score of the last checked frame. */
+    float sharpness;
+
+    /**
+     * Checks a frame.
+     *
+     * @param yBuffer Y plane buffer
+     * @param width Frame width in pixels
+     * @param height Frame height in pixels
+     * @param yRowStride Row stride of the Y plane
+     * @return {@link FaceAcquiredInfo#GOOD} if the frame should be processed, otherwise {@link
+     *     FaceAcquiredInfo#TOO_DARK}, {@link FaceAcquiredInfo#TOO_BRIGHT} or {@link
+     *     FaceAcquiredInfo#INSUFFICIENT}
+     */
+    int check(ByteBuffer yBuffer, int width, int height, int yRowStride) {
+        long sum = 0;
+        long gradient = 0;
+        int dark = 0;
+        int bright = 0;
+        int samples = 0;
+        for (int y = SAMPLE_STEP / 2; y < height - 1; y += SAMPLE_STEP) {
+            final int row = y * yRowStride;
+            for (int x = SAMPLE_STEP / 2; x < width - 1; x += SAMPLE_STEP) {
+                final int p = row + x;
+                final int luma = 0xff & yBuffer.get(p);
+                sum += luma;
+                if (luma <= CLIPPED_DARK) {
+                    dark++;
+                } else if (luma >= CLIPPED_BRIGHT) {
+                    bright++;
+                }
+                gradient += Math.abs(luma - (0xff & yBuffer.get(p + 1)));
+                gradient += Math.abs(luma - (0xff & yBuffer.get(p + yRowStride)));
+                samples++;
+            }
+        }
+        if (samples == 0) return FaceAcquiredInfo.INSUFFICIENT;
+
+        meanLuma = (float) sum / samples;
+        darkRatio = (float) dark / samples;
+        brightRatio = (float) bright / samples;
+        sharpness = gradient / (2f * samples);
+
+        if (meanLuma < MIN_MEAN_LUMA || darkRatio > MAX_CLIPPED_RATIO) {
+            return FaceAcquiredInfo.TOO_DARK;
+        }
+        if (meanLuma > MAX_MEAN_LUMA || brightRatio > MAX_CLIPPED_RATIO) {
+            return FaceAcquiredInfo.TOO_BRIGHT;
+        }
+        if (sharpness < MIN_SHARPNESS) {
+            return FaceAcquiredInfo.INSUFFICIENT;
+        }
+        return FaceAcquiredInfo.GOOD;
+    }
+
+    @Override
+    public String toString() {
+        return "meanLuma="
+                + meanLuma
+                + " darkRatio="
+                + darkRatio
+                + " brightRatio="
+                + brightRatio
+                + " sharpness="
+                + sharpness;
+    }
+}
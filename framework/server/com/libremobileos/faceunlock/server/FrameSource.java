@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2023 LibreMobileOS Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.libremobileos.faceunlock.server;
+
+import android.os.Handler;
+import android.util.Size;
+
+/**
+ * Where {@link CameraService} gets its frames from.
+ *
+ * <p>Except for {@link #isOpen}, all methods are called on the handler passed to {@link #start},
+ * and the listener is called on it as well.
+ */
+/* package-private */ interface FrameSource {
+
+    interface Listener {
+        /**
+         * Frames are about to be delivered, after {@link #open}.
+         *
+         * @param size Size of the frames
+         * @param sensorOrientation Clockwise angle the frames have to be rotated by to be upright
+         *     when the device is in its natural orientation
+         */
+        void onOpened(Size size, int sensorOrientation);
+
+        /** Frames of a different size follow, after {@link #escalate}. */
+        void onResized(Size size);
+
+        /** A new frame. It must not be used after this returns. */
+        void onFrameAvailable(YuvFrame frame);
+
+        /**
+         * The source released its resources, either because it was asked to or because it lost
+         * them, e.g. when another app takes the camera.
+         */
+        void onReleased();
+    }
+
+    /** Prepares the source, so {@link #open} can deliver frames quickly. */
+    void start(Handler handler, Listener listener);
+
+    /** Releases the source for good. */
+    void shutdown();
+
+    /**
+     * Starts delivering frames.
+     *
+     * @param lowResolution Whether to start with the smallest frames the detector can use, see
+     *     {@link #escalate}
+     */
+    void open(boolean lowResolution);
+
+    /**
+     * Switches to larger frames while open, when the current ones show too little detail.
+     *
+     * @return false if the frames are already as large as they get
+     */
+    boolean escalate();
+
+    /**
+     * Stops delivering frames. {@link Listener#onReleased} follows once the resources are released,
+     * unless {@link #open} is called before.
+     *
+     * @param keepWarmMs How long the source may hold on to its resources, so the next {@link #open}
+     *     is quicker. 0 releases them right away.
+     */
+    void pause(long keepWarmMs);
+
+    /** Stops delivering frames and releases the resources. */
+    void release();
+
+    /** Whether frames are being delivered. May be called on any thread. */
+    boolean isOpen();
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2023 LibreMobileOS Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.libremobileos.faceunlock.server;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Counts what happened to the camera frames of one session. */
+/* package-private */ final class FrameStats {
+    /** Frames acquired from the camera. */
+    final AtomicLong acquired = new AtomicLong();
+    /** Frames converted and queued for inference. */
+    final AtomicLong converted = new AtomicLong();
+    /** Frames that went through inference. */
+    final AtomicLong processed = new AtomicLong();
+    /** Queued frames replaced by a newer one before inference got to them. */
+    final AtomicLong droppedSuperseded = new AtomicLong();
+    /** Frames dropped because no frame buffer was free. */
+    final AtomicLong droppedBusy = new AtomicLong();
+    /** Frames dropped because they were captured too long ago while the pipeline was busy. */
+    final AtomicLong droppedStale = new AtomicLong();
+    /** Frames dropped because the camera was being opened or closed. */
+    final AtomicLong droppedNotReady = new AtomicLong();
+    /** Frames rejected by the quality check before conversion. */
+    final AtomicLong rejectedQuality = new AtomicLong();
+    /** Frames skipped because nothing moved since the last evaluated frame. */
+    final AtomicLong skippedStill = new AtomicLong();
+    /** Frames waiting for or in face detection, sampled whenever one is queued for it. */
+    final QueueDepth detectDepth = new QueueDepth();
+    /** Frames waiting for or in face embedding, sampled whenever one is queued for it. */
+    final QueueDepth embedDepth = new QueueDepth();
+
+    /** Average and maximum depth of a pipeline stage. */
+    static final class QueueDepth {
+        private long mSamples;
+        private long mSum;
+        private int mMax;
+
+        synchronized void sample(int depth) {
+            mSamples++;
+            mSum += depth;
+            mMax = Math.max(mMax, depth);
+        }
+
+        synchronized void reset() {
+            mSamples = 0;
+            mSum = 0;
+            mMax = 0;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format(
+                    Locale.US, "%.2f/%d", mSamples == 0 ? 0f : (float) mSum / mSamples, mMax);
+        }
+    }
+
+    void reset() {
+        acquired.set(0);
+        converted.set(0);
+        processed.set(0);
+        droppedSuperseded.set(0);
+        droppedBusy.set(0);
+        droppedStale.set(0);
+        droppedNotReady.set(0);
+        rejectedQuality.set(0);
+        skippedStill.set(0);
+        detectDepth.reset();
+        embedDepth.reset();
+    }
+
+    @Override
+    public String toString() {
+        return "acquired="
+                + acquired.get()
+                + " converted="
+                + converted.get()
+                + " processed="
+                + processed.get()
+                + " droppedSuperseded="
+                + droppedSuperseded.get()
+                + " droppedBusy="
+                + droppedBusy.get()
+                + " droppedStale="
+                + droppedStale.get()
+                + " droppedNotReady="
+                + droppedNotReady.get()
+                + " rejectedQuality="
+                + rejectedQuality.get()
+                + " skippedStill="
+                + skippedStill.get()
+                + " detectDepth="
+                + detectDepth
+                + " embedDepth="
+                + embedDepth;
+    }
+}
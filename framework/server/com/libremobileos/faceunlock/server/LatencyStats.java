@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2023 LibreMobileOS Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.libremobileos.faceunlock.server;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Latency histograms for the stages of the unlock pipeline, since boot.
+ *
+ * <p>Samples are sorted into log-linear buckets, four per power of two microseconds, so percentiles
+ * are accurate to within 25% while recording stays cheap and allocation free. Thread safe.
+ */
+/* package-private */ final class LatencyStats {
+
+    /** Camera2 {@code openCamera} until the device is open. */
+    static final int CAMERA_OPEN = 0;
+    /** {@link CameraService#openCamera} until the first frame arrives, warm or cold. */
+    static final int FIRST_FRAME = 1;
+    /** Quality and motion checks on the Y plane. */
+    static final int FRAME_GATES = 2;
+    /** YUV to RGB conversion into the frame bitmap. */
+    static final int CONVERT = 3;
+    /** Embedding and matching the face of one frame. */
+    static final int RECOGNIZE = 4;
+    /**
+     * Reading and decoding the stored hardware auth token of one face. Done when the user is
+     * loaded, off the unlock path, which only looks the token up.
+     */
+    static final int HAT_READ = 5;
+    /** Match until {@code onAuthenticated} returned. */
+    static final int DISPATCH = 6;
+    /** {@code authenticate} until the capture of the first frame. */
+    static final int AUTH_TO_FIRST_FRAME = 7;
+    /** Capture of the first frame until the match. */
+    static final int FIRST_FRAME_TO_MATCH = 8;
+    /** Capture of the matching frame until the match. */
+    static final int FRAME_TO_MATCH = 9;
+    /** {@code authenticate} until {@code onAuthenticated} returned. */
+    static final int AUTH_TO_CALLBACK = 10;
+    /** Finding or tracking the face in one frame. */
+    static final int DETECT = 11;
+    /** Detection done until embedding starts on a frame. */
+    static final int EMBED_WAIT = 12;
+
+    private static final String[] STAGE_NAMES = {
+        "camera_open",
+        "first_frame",
+        "frame_gates",
+        "convert",
+        "recognize",
+        "hat_read",
+        "dispatch",
+        "auth_to_first_frame",
+        "first_frame_to_match",
+        "frame_to_match",
+        "auth_to_callback",
+        "detect",
+        "embed_wait"
+    };
+
+    private static final int SUB_BUCKETS = 4;
+    // Up to 2^32 us, more than an hour.
+    private static final int BUCKETS = 32 * SUB_BUCKETS;
+
+    private final long[][] mCounts = new long[STAGE_NAMES.length][BUCKETS];
+    private final long[] mTotal = new long[STAGE_NAMES.length];
+    private final long[] mSumUs = new long[STAGE_NAMES.length];
+    private final long[] mMaxUs = new long[STAGE_NAMES.length];
+
+    /**
+     * Records a sample.
+     *
+     * @param stage One of the stage constants
+     * @param durationNs Duration in nanoseconds
+     */
+    void record(int stage, long durationNs) {
+        final long us = Math.max(1, durationNs / 1000);
+        final int bucket = bucketOf(us);
+        synchronized (this) {
+            mCounts[stage][bucket]++;
+            mTotal[stage]++;
+            mSumUs[stage] += us;
+            mMaxUs[stage] = Math.max(mMaxUs[stage], us);
+        }
+    }
+
+    private static int bucketOf(long us) {
+        final int exp = 63 - Long.numberOfLeadingZeros(us);
+        // The two bits following the leading one select the sub-bucket.
+        final int sub =
+                (int) ((exp >= 2 ? us >> (exp - 2) : us << (2 - exp)) & (SUB_BUCKETS - 1));
+        return Math.min(BUCKETS - 1, exp * SUB_BUCKETS + sub);
+    }
+
+    /** Upper bound of a bucket in microseconds. */
+    private static double upperBoundOf(int bucket) {
+        final int exp = bucket / SUB_BUCKETS;
+        final int sub = bucket % SUB_BUCKETS;
+        return (double) (1L << exp) * (SUB_BUCKETS + sub + 1) / SUB_BUCKETS;
+    }
+
+    /** Percentile of a stage in microseconds, capped at the largest sample. */
+    private double percentileLocked(int stage, double percentile) {
+        final long rank = (long) Math.ceil(mTotal[stage] * percentile);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mCounts[stage][i];
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(i), mMaxUs[stage]);
+            }
+        }
+        return mMaxUs[stage];
+    }
+
+    synchronized void reset() {
+        for (int stage = 0; stage < STAGE_NAMES.length; stage++) {
+            Arrays.fill(mCounts[stage], 0);
+            mTotal[stage] = 0;
+            mSumUs[stage] = 0;
+            mMaxUs[stage] = 0;
+        }
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("Latency (ms):");
+        pw.println(
+                String.format(
+                        Locale.US,
+                        "  %-20s %8s %9s %9s %9s %9s %9s",
+                        "stage", "count", "mean", "p50", "p95", "p99", "max"));
+        for (int stage = 0; stage < STAGE_NAMES.length; stage++) {
+            final long total = mTotal[stage];
+            if (total == 0) {
+                pw.println(String.format(Locale.US, "  %-20s %8d", STAGE_NAMES[stage], 0));
+                continue;
+            }
+            pw.println(
+                    String.format(
+                            Locale.US,
+                            "  %-20s %8d %9.2f %9.2f %9.2f %9.2f %9.2f",
+                            STAGE_NAMES[stage],
+                            total,
+                            mSumUs[stage] / (total * 1000.0),
+                            percentileLocked(stage, 0.50) / 1000,
+                            percentileLocked(stage, 0.95) / 1000,
+                            percentileLocked(stage, 0.99) / 1000,
+                            mMaxUs[stage] / 1000.0));
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2023 LibreMobileOS Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.libremobileos.faceunlock.server;
+
+import android.os.SystemClock;
+
+import com.libremobileos.faceunlock.common.FaceTemplates;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Compares int8 to float matching on the enrolled templates, for the {@code --match-bench} dump.
+ *
+ * <p>One in {@link #HOLD_OUT_EVERY} templates is held out and matched as if it were a live face
+ * against matrices of the remaining ones, so no query finds itself. Its distances to the remaining
+ * templates give the error of the int8 kernel and how many threshold decisions it flips. Full
+ * matches give how often each recognizes the face the query belongs to, and the time per frame.
+ */
+/* package-private */ final class MatchBenchmark {
+
+    private static final int HOLD_OUT_EVERY = 4;
+    // Rounds of matching every query, the first one warms up the JIT.
+    private static final int ROUNDS = 5;
+
+    private MatchBenchmark() {}
+
+    /**
+     * Prints the report.
+     *
+     * @param templates Enrolled templates, null if there are none
+     * @param maxDistances Thresholds in use, matched by index with {@code minCounts}
+     * @param minCounts Matching templates needed to recognize a face
+     */
+    static void dump(
+            PrintWriter pw, FaceTemplates templates, float[] maxDistances, int[] minCounts) {
+        pw.println("Match benchmark:");
+        if (templates == null || templates.getCount() < 2) {
+            pw.println("  needs at least two enrolled templates");
+            return;
+        }
+        final int dimension = templates.getDimension();
+        final List<float[]> gallery = new ArrayList<>();
+        final List<Integer> galleryIds = new ArrayList<>();
+        final List<float[]> held = new ArrayList<>();
+        final List<Integer> heldIds = new ArrayList<>();
+        for (int i = 0; i < templates.getCount(); i++) {
+            final float[] template = new float[dimension];
+            templates.get(i, template);
+            // The first template always stays, so both sides have one with two templates.
+            final boolean holdOut = i % HOLD_OUT_EVERY == 1;
+            (holdOut ? held : gallery).add(template);
+            (holdOut ? heldIds : galleryIds).add(templates.getFaceId(i));
+        }
+        final FaceTemplates remaining =
+                FaceTemplates.wrap(
+                        FaceTemplates.encode(
+                                gallery.toArray(new float[0][]),
+                                galleryIds.stream().mapToInt(Integer::intValue).toArray()));
+        final EmbeddingMatrix floats = EmbeddingMatrix.from(remaining, false);
+        final EmbeddingMatrix int8 = EmbeddingMatrix.from(remaining, true);
+        final int count = floats.getCount();
+        pw.println(
+                String.format(
+                        Locale.US,
+                        "  %d queries held out of %d templates of dimension %d, rows float %d"
+                                + " bytes, int8 %d bytes",
+                        held.size(),
+                        templates.getCount(),
+                        dimension,
+                        floats.getRowBytes(),
+                        int8.getRowBytes()));
+
+        final EmbeddingMatrix.Query[] queries = new EmbeddingMatrix.Query[held.size()];
+        for (int q = 0; q < queries.length; q++) {
+            queries[q] = new EmbeddingMatrix.Query(dimension);
+            queries[q].set(held.get(q));
+        }
+        double errorSum = 0;
+        float errorMax = 0;
+        final int[] flips = new int[maxDistances.length];
+        for (EmbeddingMatrix.Query query : queries) {
+            for (int r = 0; r < count; r++) {
+                final float exact = floats.distance(query, r);
+                final float approx = int8.distance(query, r);
+                final float error = Math.abs(exact - approx);
+                errorSum += error;
+                errorMax = Math.max(errorMax, error);
+                for (int t = 0; t < maxDistances.length; t++) {
+                    if ((exact < maxDistances[t]) != (approx < maxDistances[t])) flips[t]++;
+                }
+            }
+        }
+        final long pairs = (long) queries.length * count;
+        pw.println(
+                String.format(
+                        Locale.US,
+                        "  int8 distance error: mean %.5f max %.5f over %d pairs",
+                        errorSum / pairs,
+                        errorMax,
+                        pairs));
+
+        final float[] nearest = new float[1];
+        for (int t = 0; t < maxDistances.length; t++) {
+            int floatOwn = 0;
+            int floatOther = 0;
+            int int8Own = 0;
+            int int8Other = 0;
+            int disagree = 0;
+            for (int q = 0; q < queries.length; q++) {
+                final int faceId = heldIds.get(q);
+                final int expected =
+                        floats.match(queries[q], maxDistances[t], minCounts[t], nearest);
+                final int actual = int8.match(queries[q], maxDistances[t], minCounts[t], nearest);
+                if (expected == faceId) {
+                    floatOwn++;
+                } else if (expected != -1) {
+                    floatOther++;
+                }
+                if (actual == faceId) {
+                    int8Own++;
+                } else if (actual != -1) {
+                    int8Other++;
+                }
+                if (actual != expected) disagree++;
+            }
+            pw.println(
+                    String.format(
+                            Locale.US,
+                            "  threshold %.2f x%d: %d pair decisions flipped, %d of %d matches"
+                                    + " differ",
+                            maxDistances[t],
+                            minCounts[t],
+                            flips[t],
+                            disagree,
+                            queries.length));
+            pw.println(
+                    String.format(
+                            Locale.US,
+                            "    float: %d own face, %d other face, %.1f us per match",
+                            floatOwn,
+                            floatOther,
+                            timeMatchUs(floats, queries, maxDistances[t], minCounts[t])));
+            pw.println(
+                    String.format(
+                            Locale.US,
+                            "    int8:  %d own face, %d other face, %.1f us per match",
+                            int8Own,
+                            int8Other,
+                            timeMatchUs(int8, queries, maxDistances[t], minCounts[t])));
+        }
+        pw.println(
+                String.format(
+                        Locale.US,
+                        "  dot product kernel: float %.1f ns, int8 %.1f ns per template",
+                        timeDotNs(floats, queries),
+                        timeDotNs(int8, queries)));
+    }
+
+    /** Mean time of one match in microseconds, after a warm up round. */
+    private static double timeMatchUs(
+            EmbeddingMatrix matrix,
+            EmbeddingMatrix.Query[] queries,
+            float maxDistance,
+            int minCount) {
+        final float[] nearest = new float[1];
+        long start = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            if (round == 1) start = SystemClock.elapsedRealtimeNanos();
+            for (EmbeddingMatrix.Query query : queries) {
+                matrix.match(query, maxDistance, minCount, nearest);
+            }
+        }
+        final long elapsed = SystemClock.elapsedRealtimeNanos() - start;
+        return elapsed / 1000.0 / ((ROUNDS - 1) * queries.length);
+    }
+
+    /** Mean time of the dot product with one row, without pruning, in nanoseconds. */
+    private static double timeDotNs(EmbeddingMatrix matrix, EmbeddingMatrix.Query[] queries) {
+        final int count = matrix.getCount();
+        float sink = 0;
+        long start = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            if (round == 1) start = SystemClock.elapsedRealtimeNanos();
+            for (EmbeddingMatrix.Query query : queries) {
+                for (int r = 0; r < count; r++) {
+                    sink += matrix.dot(query, r);
+                }
+            }
+        }
+        final long elapsed = SystemClock.elapsedRealtimeNanos() - start;
+        // Keeps the loop from being optimized away.
+        if (sink == Float.NEGATIVE_INFINITY) return -1;
+        return (double) elapsed / ((ROUNDS - 1) * (long) queries.length * count);
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2023 LibreMobileOS Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.libremobileos.faceunlock.server;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Skips frames that look the same as the last frame the recognizer evaluated, e.g. when the phone
+ * lies still on a table with nobody in front of it.
+ *
+ * <p>Frames are compared on a small grid of downsampled luma. Even while nothing changes, a frame
+ * is let through every {@link #MAX_SKIP_MS} so the scene is periodically re-checked.
+ *
+ * <p>A frame let through only becomes the reference once it is reported with {@link
+ * #markEvaluated}, as it may still be dropped before the recognizer gets to it. Frames are checked
+ * on one thread and marked on another.
+ */
+/* package-private */ final class MotionGate {
+
+    private static final int GRID_WIDTH = 32;
+    private static final int GRID_HEIGHT = 24;
+    // Mean absolute luma difference per grid cell above which a frame counts as changed. Sensor
+    // noise alone stays well below this.
+    private static final float MOTION_THRESHOLD = 4f;
+    /** Longest time between two evaluated frames, even if nothing moves. */
+    private static final long MAX_SKIP_MS = 500;
+
+    /** The downsampled luma of a checked frame, to mark it evaluated later. */
+    static final class Sample {
+        private final int[] grid = new int[GRID_WIDTH * GRID_HEIGHT];
+        private long timeMs;
+        private int epoch;
+    }
+
+    // Guarded by this.
+    private final int[] lastEvaluated = new int[GRID_WIDTH * GRID_HEIGHT];
+    private boolean hasLastEvaluated = false;
+    private long lastEvaluatedTimeMs;
+    // Bumped by reset, so samples taken before it are not marked evaluated.
+    private int epoch = 0;
+    // Only touched on the checking thread.
+    private final int[] current = new int[GRID_WIDTH * GRID_HEIGHT];
+    private long currentTimeMs;
+    private int currentEpoch;
+
+    /** Mean difference of the last checked frame to the last evaluated one. */
+    float difference;
+
+    /** Forgets the last evaluated frame, so the next frame is always evaluated. */
+    synchronized void reset() {
+        hasLastEvaluated = false;
+        epoch++;
+    }
+
+    /**
+     * Checks whether a frame should be evaluated.
+     *
+     * @param yBuffer Y plane buffer
+     * @param width Frame width in pixels
+     * @param height Frame height in pixels
+     * @param yRowStride Row stride of the Y plane
+     * @param nowMs Current time in milliseconds
+     * @return false if the frame is near-identical to the last evaluated one and can be skipped
+     */
+    boolean shouldEvaluate(ByteBuffer yBuffer, int width, int height, int yRowStride, long nowMs) {
+        // Average 2x2 pixels at the center of every cell to be less sensitive to noise.
+        for (int gy = 0; gy < GRID_HEIGHT; gy++) {
+            final int y = Math.min(height - 2, (2 * gy + 1) * height / (2 * GRID_HEIGHT));
+            final int row = y * yRowStride;
+            for (int gx = 0; gx < GRID_WIDTH; gx++) {
+                final int x = Math.min(width - 2, (2 * gx + 1) * width / (2 * GRID_WIDTH));
+                final int p = row + x;
+                current[gy * GRID_WIDTH + gx] =
+                        (0xff & yBuffer.get(p))
+                                + (0xff & yBuffer.get(p + 1))
+                                + (0xff & yBuffer.get(p + yRowStride))
+                                + (0xff & yBuffer.get(p + yRowStride + 1));
+            }
+        }
+        currentTimeMs = nowMs;
+
+        synchronized (this) {
+            currentEpoch = epoch;
+            if (!hasLastEvaluated || nowMs - lastEvaluatedTimeMs >= MAX_SKIP_MS) return true;
+            long sum = 0;
+            for (int i = 0; i < current.length; i++) {
+                sum += Math.abs(current[i] - lastEvaluated[i]);
+            }
+            // Cells hold the sum of four pixels.
+            difference = sum / (4f * current.length);
+            return difference >= MOTION_THRESHOLD;
+        }
+    }
+
+    /** Copies the frame last passed to {@link #shouldEvaluate}, on the same thread. */
+    void copySample(Sample out) {
+        System.arraycopy(current, 0, out.grid, 0, current.length);
+        out.timeMs = currentTimeMs;
+        out.epoch = currentEpoch;
+    }
+
+    /**
+     * Makes a frame the one following frames are compared to, once the recognizer evaluated it.
+     * Ignored if the gate was reset since the frame was checked.
+     */
+    synchronized void markEvaluated(Sample sample) {
+        if (sample.epoch != epoch) return;
+        System.arraycopy(sample.grid, 0, lastEvaluated, 0, lastEvaluated.length);
+        hasLastEvaluated = true;
+        lastEvaluatedTimeMs = sample.timeMs;
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2023 LibreMobileOS Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.libremobileos.faceunlock.server;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.os.SystemProperties;
+import android.text.TextUtils;
+import android.util.Log;
+import android.util.Size;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Delivers recorded or synthetic frames at a fixed rate instead of camera frames, to run the unlock
+ * path without a camera, e.g. for performance measurements.
+ *
+ * <p>Recordings are raw I420 files: any number of frames of the configured size back to back, as
+ * written by {@code ffmpeg -pix_fmt yuv420p -f rawvideo}. They are played in a loop. Synthetic
+ * frames are a moving pattern without a face, which passes the frame gates and exercises everything
+ * up to the recognizer.
+ *
+ * <p>Frames are delivered as upright, i.e. with a sensor orientation of 0.
+ *
+ * <p>It runs inside the service on a debuggable device, selected with {@code
+ * debug.faceunlock.replay}. There is no host entry point: the pipeline it feeds needs the platform
+ * either way.
+ */
+/* package-private */ final class ReplayFrameSource implements FrameSource {
+
+    private static final String TAG = "ReplayFrameSource";
+    private static final boolean DEBUG = FaceUnlockServer.DEBUG;
+
+    /** Path of a recording to replay, or {@link #SYNTHETIC}. Only read on debuggable builds. */
+    private static final String PROP_SOURCE = "debug.faceunlock.replay";
+    /** Frame size, e.g. "640x480". */
+    private static final String PROP_SIZE = "debug.faceunlock.replay.size";
+    /** Frames per second. */
+    private static final String PROP_FPS = "debug.faceunlock.replay.fps";
+    private static final String SYNTHETIC = "synthetic";
+
+    private static final String DEFAULT_SIZE = "640x480";
+    private static final int DEFAULT_FPS = 30;
+
+    private final Size mSize;
+    private final long mFrameIntervalMs;
+    // Null for synthetic frames.
+    private final File mFile;
+    private final YuvFrame mFrame = new YuvFrame();
+    private Handler mHandler;
+    private Listener mListener;
+    private volatile boolean mOpen = false;
+    // Y, U and V plane of every recorded frame, or of the single synthetic frame.
+    private ByteBuffer[][] mFrames;
+    private int mFrameIndex;
+    private long mNextFrameTimeMs;
+
+    /**
+     * Creates a source from the system properties, if they ask for one. Replayed frames could unlock
+     * the device, so this only works on debuggable builds.
+     *
+     * @return The source, or null if the camera should be used
+     */
+    static FrameSource fromSystemProperties() {
+        final String source = SystemProperties.get(PROP_SOURCE, "");
+        if (TextUtils.isEmpty(source)) return null;
+        if (!SystemProperties.getBoolean("ro.debuggable", false)) {
+            Log.w(TAG, "Ignoring " + PROP_SOURCE + " on a non-debuggable build");
+            return null;
+        }
+        final Size size;
+        try {
+            size = Size.parseSize(SystemProperties.get(PROP_SIZE, DEFAULT_SIZE));
+        } catch (NumberFormatException e) {
+            Log.e(TAG, "Invalid " + PROP_SIZE, e);
+            return null;
+        }
+        final int fps = SystemProperties.getInt(PROP_FPS, DEFAULT_FPS);
+        Log.w(TAG, "Using " + source + " at " + size + ", " + fps + " fps instead of the camera");
+        return new ReplayFrameSource(size, fps, SYNTHETIC.equals(source) ? null : new File(source));
+    }
+
+    /**
+     * @param size Frame size
+     * @param fps Frames per second
+     * @param file Raw I420 recording, or null for synthetic frames
+     */
+    ReplayFrameSource(Size size, int fps, File file) {
+        mSize = size;
+        mFrameIntervalMs = 1000 / Math.max(1, fps);
+        mFile = file;
+    }
+
+    @Override
+    public void start(Handler handler, Listener listener) {
+        mHandler = handler;
+        mListener = listener;
+    }
+
+    @Override
+    public void shutdown() {
+        release();
+        mHandler = null;
+        mListener = null;
+    }
+
+    @Override
+    public void open(boolean lowResolution) {
+        if (mOpen) {
+            Log.e(TAG, "already open");
+            return;
+        }
+        mHandler.removeCallbacks(mReleaseRunnable);
+        if (mFrames == null) {
+            mFrames = mFile != null ? loadRecording() : createSyntheticFrame();
+            if (mFrames == null) {
+                mListener.onReleased();
+                return;
+            }
+        }
+        mOpen = true;
+        mListener.onOpened(mSize, 0);
+        mNextFrameTimeMs = SystemClock.uptimeMillis();
+        mHandler.post(mFrameRunnable);
+    }
+
+    @Override
+    public boolean escalate() {
+        // Recordings come in one size only.
+        return false;
+    }
+
+    private final Runnable mReleaseRunnable = this::release;
+
+    @Override
+    public void pause(long keepWarmMs) {
+        if (keepWarmMs <= 0) {
+            release();
+            return;
+        }
+        // The loaded frames are what is kept warm, released like a camera once the time is up.
+        mOpen = false;
+        mHandler.removeCallbacks(mFrameRunnable);
+        mHandler.removeCallbacks(mReleaseRunnable);
+        mHandler.postDelayed(mReleaseRunnable, keepWarmMs);
+    }
+
+    @Override
+    public void release() {
+        mOpen = false;
+        mFrames = null;
+        if (mHandler != null) {
+            mHandler.removeCallbacks(mFrameRunnable);
+            mHandler.removeCallbacks(mReleaseRunnable);
+        }
+        if (mListener != null) {
+            mListener.onReleased();
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return mOpen;
+    }
+
+    private final Runnable mFrameRunnable = this::deliverFrame;
+
+    private void deliverFrame() {
+        if (!mOpen) return;
+        final ByteBuffer[] planes;
+        if (mFile != null) {
+            planes = mFrames[mFrameIndex % mFrames.length];
+        } else {
+            planes = mFrames[0];
+            drawSyntheticFrame(planes[0], mFrameIndex);
+        }
+        mFrameIndex++;
+
+        final int width = mSize.getWidth();
+        mFrame.width = width;
+        mFrame.height = mSize.getHeight();
+        mFrame.yBuffer = planes[0];
+        mFrame.uBuffer = planes[1];
+        mFrame.vBuffer = planes[2];
+        mFrame.yRowStride = width;
+        mFrame.uvRowStride = (width + 1) / 2;
+        mFrame.uvPixelStride = 1;
+        mFrame.timestampNs = SystemClock.elapsedRealtimeNanos();
+        try {
+            mListener.onFrameAvailable(mFrame);
+        } catch (final Exception e) {
+            Log.e(TAG, "Exception!", e);
+        }
+
+        // Like a camera, don't catch up on frames missed while the listener was busy.
+        mNextFrameTimeMs = Math.max(mNextFrameTimeMs + mFrameIntervalMs, SystemClock.uptimeMillis());
+        mHandler.postAtTime(mFrameRunnable, mNextFrameTimeMs);
+    }
+
+    private ByteBuffer[][] loadRecording() {
+        final int ySize = mSize.getWidth() * mSize.getHeight();
+        final int uvSize = ((mSize.getWidth() + 1) / 2) * ((mSize.getHeight() + 1) / 2);
+        final int frameSize = ySize + 2 * uvSize;
+        try (FileInputStream in = new FileInputStream(mFile)) {
+            final FileChannel channel = in.getChannel();
+            final int count = (int) (channel.size() / frameSize);
+            if (count == 0) {
+                Log.e(TAG, mFile + " doesn't hold a single " + mSize + " frame");
+                return null;
+            }
+            // The mapping stays valid after the channel is closed.
+            final MappedByteBuffer data =
+                    channel.map(FileChannel.MapMode.READ_ONLY, 0, (long) count * frameSize);
+            final ByteBuffer[][] frames = new ByteBuffer[count][];
+            for (int i = 0; i < count; i++) {
+                final int offset = i * frameSize;
+                frames[i] =
+                        new ByteBuffer[] {
+                            slice(data, offset, ySize),
+                            slice(data, offset + ySize, uvSize),
+                            slice(data, offset + ySize + uvSize, uvSize)
+                        };
+            }
+            if (DEBUG) Log.d(TAG, "loaded " + count + " frames from " + mFile);
+            return frames;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to load " + mFile, e);
+            return null;
+        }
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+        final ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(offset);
+        duplicate.limit(offset + length);
+        return duplicate.slice();
+    }
+
+    private ByteBuffer[][] createSyntheticFrame() {
+        final int uvSize = ((mSize.getWidth() + 1) / 2) * ((mSize.getHeight() + 1) / 2);
+        final ByteBuffer u = ByteBuffer.allocateDirect(uvSize);
+        final ByteBuffer v = ByteBuffer.allocateDirect(uvSize);
+        for (int i = 0; i < uvSize; i++) {
+            u.put(i, (byte) 128);
+            v.put(i, (byte) 128);
+        }
+        return new ByteBuffer[][] {
+            {ByteBuffer.allocateDirect(mSize.getWidth() * mSize.getHeight()), u, v}
+        };
+    }
+
+    /** Draws a diagonal ramp moving a few pixels per frame, textured enough to pass the gates. */
+    private void drawSyntheticFrame(ByteBuffer y, int index) {
+        final int width = mSize.getWidth();
+        final int height = mSize.getHeight();
+        final int shift = index * 8;
+        for (int row = 0; row < height; row++) {
+            final int offset = row * width;
+            final int rowValue = row * 2 + shift;
+            for (int col = 0; col < width; col++) {
+                y.put(offset + col, (byte) (col * 3 + rowValue));
+            }
+        }
+    }
+}
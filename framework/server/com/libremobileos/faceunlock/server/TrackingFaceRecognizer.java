@@ -0,0 +1,404 @@
+/*
+ * Copyright (C) 2023 LibreMobileOS Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.libremobileos.faceunlock.server;
+
+import android.graphics.Bitmap;
+import android.graphics.RectF;
+import android.util.Log;
+
+import com.libremobileos.faceunlock.common.FaceTemplates;
+
+/**
+ * Recognizes faces like {@code FaceRecognizer}, but only runs the face detector every few frames.
+ * In between, the face box found by the detector is followed with a cheap template tracker and
+ * only cropped and embedded.
+ *
+ * <p>The tracker compares a grid of luma samples from the face box against the previous frame at a
+ * few offsets around the last position. Detection runs again when the best match is too different,
+ * when the box leaves the frame, and at least every {@link #DETECT_INTERVAL} frames. The embedding
+ * model doesn't verify that the box still holds a face, it embeds whatever it is given, so a
+ * tracked box is only as good as these checks.
+ *
+ * <p>Recognition runs in two stages, so they can overlap on consecutive frames: {@link #detect}
+ * finds the face box and {@link #recognize} embeds and matches it. Each stage must only be called
+ * from one thread at a time, {@link #reset} from any thread.
+ */
+/* package-private */ final class TrackingFaceRecognizer {
+
+    private static final String TAG = "TrackingFaceRecognizer";
+    private static final boolean DEBUG = FaceUnlockServer.DEBUG;
+
+    /** The detector runs at least every this many frames. */
+    static final int DETECT_INTERVAL = 5;
+
+    // Input sizes of the models, the face library doesn't expose them. FaceModels checks them
+    // when loading the models.
+    /** Side of the square the detection model stretches whole frames to. */
+    static final int DETECTOR_INPUT_SIZE = 300;
+    /** Side of the square the embedding model scales face crops to. */
+    static final int SCANNER_INPUT_SIZE = 112;
+
+    // Luma samples per side of the face box.
+    private static final int GRID = 16;
+    // Offsets tried in each direction, in half grid cells.
+    private static final int SEARCH_STEPS = 4;
+    // Mean absolute luma difference above which the face counts as lost.
+    private static final float MAX_TRACK_DIFFERENCE = 20f;
+
+    /** Runs the detection model on whole frames of one size, only on the detection stage. */
+    interface Detector {
+        /**
+         * Finds the faces in a frame.
+         *
+         * @param face Receives the box of the first face found, in frame coordinates
+         * @return Number of faces found
+         */
+        int detect(Bitmap frame, RectF face);
+    }
+
+    /** Runs the embedding model on face crops, only on the recognition stage. */
+    interface Scanner {
+        /**
+         * Embeds the face in a box of a frame.
+         *
+         * @param scan Receives the brightness hint and embedding of the crop
+         * @return false if the model failed on the crop
+         */
+        boolean scan(Bitmap frame, RectF box, Scan scan);
+
+        /**
+         * Distance of the face scanned last to an enrolled template, as the face library computes
+         * it. The reference {@link EmbeddingMatrix#match} has to agree with.
+         */
+        float compare(float[] template);
+    }
+
+    /** What the scanner made of a face crop. */
+    static final class Scan {
+        /** Negative if the light is too bad to recognize the face. */
+        float brightnessHint;
+        /** The embedding, null if there is none. */
+        float[] embedding;
+    }
+
+    /** Where the face is in a frame, owned by the caller and passed from one stage to the next. */
+    static final class Detection {
+        /** Number of faces found. */
+        int faces;
+        /** Whether the face was tracked rather than detected. */
+        boolean tracked;
+        /** The recognizer that found the face. */
+        TrackingFaceRecognizer recognizer;
+        final RectF box = new RectF();
+        /** Shorter side of the face box, in pixels. */
+        float faceSize;
+        /** Mean luma difference of neighbouring pixels in the face box, low when blurry. */
+        float sharpness;
+        /**
+         * How many times larger the bitmap passed to {@link #recognize} is than the one passed to
+         * {@link #detect}, set by the caller.
+         */
+        int embedScale = 1;
+    }
+
+    /** Outcome of recognizing one face, reused for every frame. */
+    static final class Result {
+        /** Whether the scanner embedded the face. */
+        boolean found;
+        /** Brightness hint of the face, negative if the light is too bad to recognize it. */
+        float brightnessHint;
+        /** Whether the face matches an enrolled one. */
+        boolean recognized;
+        /** Id of the enrolled face it matches, valid if {@link #recognized}. */
+        int faceId;
+        /** Distance to the closest enrolled model. */
+        float distance;
+
+        private void clear() {
+            found = false;
+            brightnessHint = 0;
+            recognized = false;
+            faceId = -1;
+            distance = Float.MAX_VALUE;
+        }
+    }
+
+    private final Detector mDetector;
+    private final Scanner mScanner;
+    // Enrolled templates, null if there are none.
+    private final EmbeddingMatrix mEmbeddings;
+    private final int mWidth;
+    private final int mHeight;
+
+    private final Result mResult = new Result();
+    // The face being recognized.
+    private final EmbeddingMatrix.Query mQuery;
+    private final float[] mNearest = new float[1];
+    private final int[] mPixels;
+    private final int[] mTemplate = new int[GRID * GRID];
+    private final RectF mBox = new RectF();
+    // Copy of the box handed to the scanner, which may adjust it.
+    private final RectF mCrop = new RectF();
+    private final Scan mScan = new Scan();
+    // Enrolled template being compared by the library, only touched by the recognition stage.
+    private final float[] mReference;
+    private boolean mTracking = false;
+    private int mFramesSinceDetection = 0;
+    private volatile boolean mResetRequested = false;
+    // Set by the recognition stage when the scanner failed on the face.
+    private volatile boolean mLost = false;
+
+    /* package-private */ TrackingFaceRecognizer(
+            Detector detector,
+            Scanner scanner,
+            EmbeddingMatrix embeddings,
+            int width,
+            int height) {
+        mDetector = detector;
+        mScanner = scanner;
+        mEmbeddings = embeddings;
+        mQuery = new EmbeddingMatrix.Query(embeddings != null ? embeddings.getDimension() : 0);
+        mReference = new float[mQuery.values.length];
+        mWidth = width;
+        mHeight = height;
+        mPixels = new int[width * height];
+    }
+
+    /**
+     * Creates a recognizer running already loaded models. Only the per-size state is its own, so
+     * this is cheap.
+     *
+     * @param models Models shared with the other recognizers
+     * @param embeddings Templates of the enrolled face, or null if there is none
+     * @param width Width of the bitmaps passed to {@link #recognize}
+     * @param height Height of the bitmaps passed to {@link #recognize}
+     */
+    static TrackingFaceRecognizer create(
+            FaceModels models, EmbeddingMatrix embeddings, int width, int height) {
+        return new TrackingFaceRecognizer(
+                models.newDetector(width, height), models.newScanner(), embeddings, width, height);
+    }
+
+    /** Drops the tracked face, so the next frame runs the detector. May be called on any thread. */
+    void reset() {
+        mResetRequested = true;
+    }
+
+    /**
+     * First stage, finds the face in a frame.
+     *
+     * @param bitmap Frame of the size passed to {@link #create}
+     * @param detection Filled with the face found
+     * @return false if the frame is of a different size, converted before the recognizer changed
+     */
+    boolean detect(Bitmap bitmap, Detection detection) {
+        if (bitmap.getWidth() != mWidth || bitmap.getHeight() != mHeight) return false;
+        detection.recognizer = this;
+        detection.tracked = false;
+        if (mResetRequested || mLost) {
+            mResetRequested = false;
+            mLost = false;
+            mTracking = false;
+        }
+
+        bitmap.getPixels(mPixels, 0, mWidth, 0, 0, mWidth, mHeight);
+        if (mTracking && mFramesSinceDetection + 1 < DETECT_INTERVAL && track()) {
+            mFramesSinceDetection++;
+            detection.tracked = true;
+            detection.faces = 1;
+        } else {
+            mTracking = false;
+            mFramesSinceDetection = 0;
+            detection.faces = mDetector.detect(bitmap, mBox);
+            if (detection.faces != 1) return true;
+            if (!clampBox()) {
+                detection.faces = 0;
+                return true;
+            }
+            captureTemplate();
+            mTracking = true;
+        }
+        detection.box.set(mBox);
+        detection.faceSize = Math.min(mBox.width(), mBox.height());
+        detection.sharpness = sharpness();
+        return true;
+    }
+
+    /**
+     * Second stage, embeds the face found by {@link #detect} and matches it against the enrolled
+     * faces.
+     *
+     * @param bitmap The frame passed to {@link #detect}, or a version of it {@link
+     *     Detection#embedScale} times larger that has at least the face converted
+     * @param detection The single face {@link #detect} found in it
+     * @param maxDistance Maximum distance of a face to an enrolled model to count as matching it
+     * @param minModelCount Minimum number of matching models of the same face to recognize a face
+     * @return The result, only valid until the next call
+     */
+    Result recognize(Bitmap bitmap, Detection detection, float maxDistance, int minModelCount) {
+        final Result result = mResult;
+        result.clear();
+        mCrop.set(detection.box);
+        final int scale = detection.embedScale;
+        if (scale != 1) {
+            mCrop.left *= scale;
+            mCrop.top *= scale;
+            mCrop.right *= scale;
+            mCrop.bottom *= scale;
+        }
+        final Scan scan = mScan;
+        if (!mScanner.scan(bitmap, mCrop, scan)) {
+            // Don't trust the box anymore, detect again on the next frame.
+            mLost = true;
+            return result;
+        }
+        result.found = true;
+        result.brightnessHint = scan.brightnessHint;
+        if (result.brightnessHint < 0) return result;
+
+        final float[] embedding = scan.embedding;
+        if (mEmbeddings != null && embedding != null && embedding.length == mQuery.values.length) {
+            mQuery.set(embedding);
+            result.faceId = mEmbeddings.match(mQuery, maxDistance, minModelCount, mNearest);
+            result.distance = mNearest[0];
+            result.recognized = result.faceId != -1;
+            if (result.recognized && !confirm(result.faceId, maxDistance, minModelCount)) {
+                Log.wtf(TAG, "Face " + result.faceId + " matched, but not by the library");
+                result.recognized = false;
+                result.faceId = -1;
+            }
+        }
+        if (DEBUG) {
+            Log.d(
+                    TAG,
+                    "tracked="
+                            + detection.tracked
+                            + " distance="
+                            + result.distance
+                            + " face="
+                            + result.faceId);
+        }
+        return result;
+    }
+
+    /**
+     * Whether the face library's own compare also finds enough templates of the face within the
+     * distance. Only runs on accepted matches, once per unlock, so the library stays the authority
+     * on what unlocks without being on the path of every frame.
+     */
+    private boolean confirm(int faceId, float maxDistance, int minModelCount) {
+        final FaceTemplates templates = mEmbeddings.getTemplates();
+        int matching = 0;
+        for (int i = 0; i < templates.getCount(); i++) {
+            if (templates.getFaceId(i) != faceId) continue;
+            templates.get(i, mReference);
+            if (mScanner.compare(mReference) < maxDistance) matching++;
+        }
+        return matching >= minModelCount;
+    }
+
+    /** Moves the box to where the template matches best, returns false if there is no match. */
+    private boolean track() {
+        final float cellWidth = mBox.width() / GRID;
+        final float cellHeight = mBox.height() / GRID;
+        long bestDifference = Long.MAX_VALUE;
+        int bestX = 0;
+        int bestY = 0;
+        for (int sy = -SEARCH_STEPS; sy <= SEARCH_STEPS; sy++) {
+            for (int sx = -SEARCH_STEPS; sx <= SEARCH_STEPS; sx++) {
+                final long difference =
+                        difference(
+                                mBox.left + sx * cellWidth / 2,
+                                mBox.top + sy * cellHeight / 2,
+                                cellWidth,
+                                cellHeight,
+                                bestDifference);
+                if (difference < bestDifference) {
+                    bestDifference = difference;
+                    bestX = sx;
+                    bestY = sy;
+                }
+            }
+        }
+        if ((float) bestDifference / mTemplate.length > MAX_TRACK_DIFFERENCE) {
+            if (DEBUG) Log.d(TAG, "lost face, difference " + bestDifference / mTemplate.length);
+            return false;
+        }
+        mBox.offset(bestX * cellWidth / 2, bestY * cellHeight / 2);
+        if (!clampBox()) return false;
+        // Follow slow changes like the face turning or the exposure adapting.
+        captureTemplate();
+        return true;
+    }
+
+    /** Sum of absolute differences to the template at the given position, stops above limit. */
+    private long difference(float left, float top, float cellWidth, float cellHeight, long limit) {
+        long sum = 0;
+        for (int gy = 0; gy < GRID; gy++) {
+            final int y = (int) (top + (gy + 0.5f) * cellHeight);
+            for (int gx = 0; gx < GRID; gx++) {
+                final int x = (int) (left + (gx + 0.5f) * cellWidth);
+                sum += Math.abs(luma(x, y) - mTemplate[gy * GRID + gx]);
+            }
+            if (sum >= limit) return sum;
+        }
+        return sum;
+    }
+
+    private void captureTemplate() {
+        final float cellWidth = mBox.width() / GRID;
+        final float cellHeight = mBox.height() / GRID;
+        for (int gy = 0; gy < GRID; gy++) {
+            final int y = (int) (mBox.top + (gy + 0.5f) * cellHeight);
+            for (int gx = 0; gx < GRID; gx++) {
+                mTemplate[gy * GRID + gx] = luma((int) (mBox.left + (gx + 0.5f) * cellWidth), y);
+            }
+        }
+    }
+
+    /** Mean absolute difference of horizontally neighbouring pixels, on the template rows. */
+    private float sharpness() {
+        final int left = (int) mBox.left;
+        final int right = (int) mBox.right - 1;
+        final float cellHeight = mBox.height() / GRID;
+        long sum = 0;
+        for (int gy = 0; gy < GRID; gy++) {
+            final int y = (int) (mBox.top + (gy + 0.5f) * cellHeight);
+            int previous = luma(left, y);
+            for (int x = left + 1; x <= right; x++) {
+                final int current = luma(x, y);
+                sum += Math.abs(current - previous);
+                previous = current;
+            }
+        }
+        return right > left ? (float) sum / (GRID * (right - left)) : 0f;
+    }
+
+    private int luma(int x, int y) {
+        x = Math.max(0, Math.min(mWidth - 1, x));
+        y = Math.max(0, Math.min(mHeight - 1, y));
+        final int p = mPixels[y * mWidth + x];
+        return (((p >> 16) & 0xff) + 2 * ((p >> 8) & 0xff) + (p & 0xff)) >> 2;
+    }
+
+    /** Keeps the box inside the frame, returns false if too little of it is left. */
+    private boolean clampBox() {
+        return mBox.intersect(0, 0, mWidth, mHeight)
+                && mBox.width() >= GRID
+                && mBox.height() >= GRID;
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2023 LibreMobileOS Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.libremobileos.faceunlock.server;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A YUV_420_888 frame delivered by a {@link FrameSource}. The buffers are only valid until the frame
+ * is closed, which the source does at the latest when the listener returns.
+ */
+/* package-private */ class YuvFrame {
+    int width;
+    int height;
+    ByteBuffer yBuffer;
+    ByteBuffer uBuffer;
+    ByteBuffer vBuffer;
+    int yRowStride;
+    int uvRowStride;
+    int uvPixelStride;
+    /** Capture time in nanoseconds, in the {@code SystemClock.elapsedRealtimeNanos} time base. */
+    long timestampNs;
+
+    /** Returns the buffers to the source. Safe to call more than once. */
+    void close() {}
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2023 LibreMobileOS Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.libremobileos.faceunlock.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.libremobileos.faceunlock.common.FaceTemplates;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Random;
+
+/**
+ * Checks that {@link EmbeddingMatrix#match} accepts and rejects the same faces as comparing every
+ * template one by one, the way the face library does, and that pruning by centroid and radius
+ * never drops a face that has a template within the distance.
+ */
+@RunWith(AndroidJUnit4.class)
+public class EmbeddingMatrixTest {
+
+    private static final int DIMENSION = 192;
+
+    /** Euclidean distance between the normalized vectors, what {@code Face.compare} returns. */
+    static float referenceDistance(float[] a, float[] b) {
+        double aa = 0;
+        double bb = 0;
+        for (int i = 0; i < a.length; i++) {
+            aa += a[i] * a[i];
+            bb += b[i] * b[i];
+        }
+        final double na = Math.sqrt(aa);
+        final double nb = Math.sqrt(bb);
+        double sum = 0;
+        for (int i = 0; i < a.length; i++) {
+            final double d = a[i] / na - b[i] / nb;
+            sum += d * d;
+        }
+        return (float) Math.sqrt(sum);
+    }
+
+    /** Face id the reference recognizes, the one with enough matches and the closest template. */
+    private static int referenceMatch(
+            float[][] templates, int[] faceIds, float[] query, float maxDistance, int minCount) {
+        int recognized = -1;
+        float best = Float.MAX_VALUE;
+        for (int i = 0; i < templates.length; i++) {
+            int matching = 0;
+            float nearest = Float.MAX_VALUE;
+            for (int j = 0; j < templates.length; j++) {
+                if (faceIds[j] != faceIds[i]) continue;
+                final float distance = referenceDistance(query, templates[j]);
+                if (distance < maxDistance) matching++;
+                nearest = Math.min(nearest, distance);
+            }
+            if (matching >= minCount && nearest < best) {
+                best = nearest;
+                recognized = faceIds[i];
+            }
+        }
+        return recognized;
+    }
+
+    private static float[] random(Random random) {
+        final float[] v = new float[DIMENSION];
+        for (int i = 0; i < DIMENSION; i++) v[i] = (float) random.nextGaussian();
+        return v;
+    }
+
+    /** {@code base} plus noise of the given size, scaled so the lengths vary like embeddings do. */
+    private static float[] around(float[] base, float noise, Random random) {
+        final float length = 0.5f + 2 * random.nextFloat();
+        final float[] v = new float[DIMENSION];
+        for (int i = 0; i < DIMENSION; i++) {
+            v[i] = length * (base[i] + noise * (float) random.nextGaussian());
+        }
+        return v;
+    }
+
+    private static int match(EmbeddingMatrix matrix, float[] query, float max, int min) {
+        final EmbeddingMatrix.Query q = new EmbeddingMatrix.Query(DIMENSION);
+        q.set(query);
+        return matrix.match(q, max, min, new float[1]);
+    }
+
+    private static float nearest(EmbeddingMatrix matrix, float[] query, float max) {
+        final EmbeddingMatrix.Query q = new EmbeddingMatrix.Query(DIMENSION);
+        q.set(query);
+        final float[] nearest = new float[1];
+        matrix.match(q, max, 1, nearest);
+        return nearest[0];
+    }
+
+    @Test
+    public void decidesLikeReference() {
+        final Random random = new Random(42);
+        final int faces = 4;
+        final int perFace = 5;
+        final float[][] bases = new float[faces][];
+        final float[][] templates = new float[faces * perFace][];
+        final int[] faceIds = new int[templates.length];
+        for (int f = 0; f < faces; f++) {
+            bases[f] = random(random);
+            for (int t = 0; t < perFace; t++) {
+                templates[f * perFace + t] = around(bases[f], 0.4f, random);
+                faceIds[f * perFace + t] = f + 1;
+            }
+        }
+        final EmbeddingMatrix matrix =
+                EmbeddingMatrix.from(
+                        FaceTemplates.wrap(FaceTemplates.encode(templates, faceIds)), false);
+
+        final float[][] thresholds = {{0.7f, 2}, {0.5f, 1}, {0.9f, 3}};
+        int accepted = 0;
+        int rejected = 0;
+        for (int i = 0; i < 400; i++) {
+            final int f = random.nextInt(faces);
+            // Mostly noise levels around the thresholds, some strangers.
+            final float[] query =
+                    i % 8 == 0
+                            ? random(random)
+                            : around(bases[f], 0.2f + 0.4f * random.nextFloat(), random);
+            for (float[] t : thresholds) {
+                final int expected = referenceMatch(templates, faceIds, query, t[0], (int) t[1]);
+                assertEquals(
+                        "query " + i + " at " + t[0],
+                        expected,
+                        match(matrix, query, t[0], (int) t[1]));
+                if (expected == -1) rejected++;
+                else accepted++;
+            }
+        }
+        // Both decisions have to be exercised for the comparison to mean anything.
+        assertNotEquals(0, accepted);
+        assertNotEquals(0, rejected);
+    }
+
+    /** A unit vector at exactly {@code distance} from the unit vector {@code t}. */
+    private static float[] atDistance(float[] t, float distance, Random random) {
+        // Orthonormal direction to t.
+        final float[] u = random(random);
+        float dot = 0;
+        for (int i = 0; i < DIMENSION; i++) dot += u[i] * t[i];
+        for (int i = 0; i < DIMENSION; i++) u[i] -= dot * t[i];
+        EmbeddingMatrix.normalize(u, u);
+        // Chord of length distance on the unit sphere.
+        final double angle = 2 * Math.asin(distance / 2);
+        final float[] q = new float[DIMENSION];
+        for (int i = 0; i < DIMENSION; i++) {
+            q[i] = (float) (Math.cos(angle) * t[i] + Math.sin(angle) * u[i]);
+        }
+        return q;
+    }
+
+    private static EmbeddingMatrix single(float[] template) {
+        return EmbeddingMatrix.from(
+                FaceTemplates.wrap(FaceTemplates.encode(new float[][] {template})), false);
+    }
+
+    @Test
+    public void keepsFaceJustWithinDistance() {
+        final Random random = new Random(1);
+        final float[] t = random(random);
+        EmbeddingMatrix.normalize(t, t);
+        final float[] q = atDistance(t, 0.7f - 1e-4f, random);
+        assertEquals(0.7f - 1e-4f, referenceDistance(t, q), 1e-5f);
+        assertEquals(0, match(single(t), q, 0.7f, 1));
+    }
+
+    @Test
+    public void scansFaceWithinSlack() {
+        // Beyond the distance, but within the float slack of the bound: compared, not matched.
+        final Random random = new Random(2);
+        final float[] t = random(random);
+        EmbeddingMatrix.normalize(t, t);
+        final float[] q = atDistance(t, 0.7f + 5e-4f, random);
+        final EmbeddingMatrix matrix = single(t);
+        assertEquals(-1, match(matrix, q, 0.7f, 1));
+        assertEquals(0.7f + 5e-4f, nearest(matrix, q, 0.7f), 1e-4f);
+    }
+
+    @Test
+    public void prunesFaceBeyondSlack() {
+        final Random random = new Random(3);
+        final float[] t = random(random);
+        EmbeddingMatrix.normalize(t, t);
+        final float[] q = atDistance(t, 0.7f + 0.01f, random);
+        final EmbeddingMatrix matrix = single(t);
+        assertEquals(-1, match(matrix, q, 0.7f, 1));
+        assertEquals(Float.MAX_VALUE, nearest(matrix, q, 0.7f), 0);
+    }
+
+    @Test
+    public void keepsSpreadFaceNearOneTemplate() {
+        // The centroid of two far apart templates is far from both, the radius must cover that.
+        final Random random = new Random(4);
+        final float[] a = random(random);
+        EmbeddingMatrix.normalize(a, a);
+        final float[] b = atDistance(a, 1.2f, random);
+        final float[] q = atDistance(a, 0.3f, random);
+        final EmbeddingMatrix matrix =
+                EmbeddingMatrix.from(
+                        FaceTemplates.wrap(FaceTemplates.encode(new float[][] {a, b})), false);
+        assertEquals(0, match(matrix, q, 0.7f, 1));
+        assertEquals(-1, match(matrix, q, 0.7f, 2));
+        assertEquals(referenceDistance(a, q), nearest(matrix, q, 0.7f), 1e-4f);
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2023 LibreMobileOS Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.libremobileos.faceunlock.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Size;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Pins the {@link FrameSource} contract for synthetic frames, in particular around pausing. */
+@RunWith(AndroidJUnit4.class)
+public class ReplayFrameSourceTest {
+
+    private static final Size SIZE = new Size(64, 48);
+    private static final int FPS = 100;
+    private static final long TIMEOUT_MS = 2000;
+
+    /** Counts the callbacks, all of which have to come on the handler thread. */
+    private final class RecordingListener implements FrameSource.Listener {
+        final AtomicInteger opened = new AtomicInteger();
+        final AtomicInteger frames = new AtomicInteger();
+        final AtomicInteger released = new AtomicInteger();
+        volatile boolean wrongThread;
+        volatile CountDownLatch frameLatch = new CountDownLatch(1);
+        volatile CountDownLatch releaseLatch = new CountDownLatch(1);
+
+        @Override
+        public void onOpened(Size size, int sensorOrientation) {
+            checkThread();
+            assertEquals(SIZE, size);
+            opened.incrementAndGet();
+        }
+
+        @Override
+        public void onResized(Size size) {
+            checkThread();
+        }
+
+        @Override
+        public void onFrameAvailable(YuvFrame frame) {
+            checkThread();
+            frames.incrementAndGet();
+            frameLatch.countDown();
+        }
+
+        @Override
+        public void onReleased() {
+            checkThread();
+            released.incrementAndGet();
+            releaseLatch.countDown();
+        }
+
+        private void checkThread() {
+            if (Thread.currentThread() != mThread) wrongThread = true;
+        }
+    }
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private ReplayFrameSource mSource;
+    private RecordingListener mListener;
+
+    @Before
+    public void setUp() throws InterruptedException {
+        mThread = new HandlerThread("ReplayFrameSourceTest");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mSource = new ReplayFrameSource(SIZE, FPS, null);
+        mListener = new RecordingListener();
+        run(() -> mSource.start(mHandler, mListener));
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        run(mSource::shutdown);
+        mThread.quitSafely();
+        assertFalse(mListener.wrongThread);
+    }
+
+    /** Runs on the handler thread, as the contract requires, and waits for it. */
+    private void run(Runnable runnable) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        mHandler.post(
+                () -> {
+                    runnable.run();
+                    done.countDown();
+                });
+        assertTrue(done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    }
+
+    private void awaitFrame() throws InterruptedException {
+        mListener.frameLatch = new CountDownLatch(1);
+        assertTrue(mListener.frameLatch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void deliversFramesWhileOpen() throws InterruptedException {
+        run(() -> mSource.open(false));
+        assertTrue(mSource.isOpen());
+        assertEquals(1, mListener.opened.get());
+        awaitFrame();
+        awaitFrame();
+    }
+
+    @Test
+    public void pauseWithoutWarmTimeReleases() throws InterruptedException {
+        run(() -> mSource.open(false));
+        awaitFrame();
+        run(() -> mSource.pause(0));
+        assertFalse(mSource.isOpen());
+        assertEquals(1, mListener.released.get());
+    }
+
+    @Test
+    public void pauseReleasesOnceWarmTimeIsUp() throws InterruptedException {
+        run(() -> mSource.open(false));
+        awaitFrame();
+        run(() -> mSource.pause(100));
+        assertFalse(mSource.isOpen());
+        assertEquals(0, mListener.released.get());
+        final int frames = mListener.frames.get();
+        assertTrue(mListener.releaseLatch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(1, mListener.released.get());
+        assertEquals(frames, mListener.frames.get());
+    }
+
+    @Test
+    public void openWhileWarmKeepsSource() throws InterruptedException {
+        run(() -> mSource.open(false));
+        awaitFrame();
+        run(() -> mSource.pause(100));
+        run(() -> mSource.open(false));
+        assertTrue(mSource.isOpen());
+        assertEquals(2, mListener.opened.get());
+        assertFalse(mListener.releaseLatch.await(300, TimeUnit.MILLISECONDS));
+        awaitFrame();
+    }
+}
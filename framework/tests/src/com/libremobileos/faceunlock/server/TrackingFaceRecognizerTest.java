@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2023 LibreMobileOS Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.libremobileos.faceunlock.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.graphics.Bitmap;
+import android.graphics.RectF;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.libremobileos.faceunlock.common.FaceTemplates;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Pins when {@link TrackingFaceRecognizer} runs the detector and when it tracks instead, and that
+ * it only recognizes faces the library's compare agrees with.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TrackingFaceRecognizerTest {
+
+    private static final int WIDTH = 160;
+    private static final int HEIGHT = 120;
+    private static final RectF FACE = new RectF(40, 30, 100, 90);
+
+    /** Embedding of the enrolled face, for the tests that recognize. */
+    private static final float[] ENROLLED = {1, 0, 0, 0};
+
+    /** Reports one face where the test put it, and counts how often it ran. */
+    private static final class FakeDetector implements TrackingFaceRecognizer.Detector {
+        final RectF face = new RectF(FACE);
+        int faces = 1;
+        int calls;
+
+        @Override
+        public int detect(Bitmap frame, RectF box) {
+            calls++;
+            box.set(face);
+            return faces;
+        }
+    }
+
+    private static final class FakeScanner implements TrackingFaceRecognizer.Scanner {
+        boolean fail;
+        float[] embedding;
+        // What the library's compare returns, the real distance if NaN.
+        float distance = Float.NaN;
+
+        @Override
+        public boolean scan(Bitmap frame, RectF box, TrackingFaceRecognizer.Scan scan) {
+            if (fail) return false;
+            scan.brightnessHint = 1;
+            scan.embedding = embedding;
+            return true;
+        }
+
+        @Override
+        public float compare(float[] template) {
+            if (!Float.isNaN(distance)) return distance;
+            return EmbeddingMatrixTest.referenceDistance(embedding, template);
+        }
+    }
+
+    private FakeDetector mDetector;
+    private FakeScanner mScanner;
+    private TrackingFaceRecognizer mRecognizer;
+    private TrackingFaceRecognizer.Detection mDetection;
+
+    @Before
+    public void setUp() {
+        mDetector = new FakeDetector();
+        mScanner = new FakeScanner();
+        mRecognizer =
+                new TrackingFaceRecognizer(mDetector, mScanner, null, WIDTH, HEIGHT);
+        mDetection = new TrackingFaceRecognizer.Detection();
+    }
+
+    /** A smooth pattern in the face box on a flat background, inverted for another face. */
+    private static Bitmap frame(float dx, float dy, boolean otherFace) {
+        final int[] pixels = new int[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                final float fx = x - FACE.left - dx;
+                final float fy = y - FACE.top - dy;
+                int luma = 40;
+                if (fx >= 0 && fx < FACE.width() && fy >= 0 && fy < FACE.height()) {
+                    final double wave = Math.sin(fx / 6) * Math.cos(fy / 7);
+                    luma = (int) (128 + (otherFace ? -60 : 60) * wave);
+                }
+                pixels[y * WIDTH + x] = 0xff000000 | luma << 16 | luma << 8 | luma;
+            }
+        }
+        final Bitmap bitmap = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+        bitmap.setPixels(pixels, 0, WIDTH, 0, 0, WIDTH, HEIGHT);
+        return bitmap;
+    }
+
+    private TrackingFaceRecognizer recognizerFor(float[] template) {
+        final FaceTemplates templates =
+                FaceTemplates.wrap(
+                        FaceTemplates.encode(new float[][] {template, template}, new int[] {7, 7}));
+        return new TrackingFaceRecognizer(
+                mDetector, mScanner, EmbeddingMatrix.from(templates, false), WIDTH, HEIGHT);
+    }
+
+    private void detect(Bitmap bitmap) {
+        assertTrue(mRecognizer.detect(bitmap, mDetection));
+    }
+
+    @Test
+    public void detectsFirstFrameThenTracks() {
+        final Bitmap bitmap = frame(0, 0, false);
+        detect(bitmap);
+        assertFalse(mDetection.tracked);
+        assertEquals(1, mDetection.faces);
+        assertEquals(FACE, mDetection.box);
+
+        detect(bitmap);
+        assertTrue(mDetection.tracked);
+        assertEquals(1, mDetection.faces);
+        assertEquals(FACE, mDetection.box);
+        assertEquals(1, mDetector.calls);
+    }
+
+    @Test
+    public void redetectsEveryInterval() {
+        final Bitmap bitmap = frame(0, 0, false);
+        for (int i = 0; i < 2 * TrackingFaceRecognizer.DETECT_INTERVAL; i++) {
+            detect(bitmap);
+            assertEquals(
+                    "frame " + i,
+                    i % TrackingFaceRecognizer.DETECT_INTERVAL != 0,
+                    mDetection.tracked);
+        }
+        assertEquals(2, mDetector.calls);
+    }
+
+    @Test
+    public void followsMovingFace() {
+        detect(frame(0, 0, false));
+        detect(frame(4, -4, false));
+        assertTrue(mDetection.tracked);
+        assertEquals(FACE.left + 4, mDetection.box.left, 1);
+        assertEquals(FACE.top - 4, mDetection.box.top, 1);
+        assertEquals(1, mDetector.calls);
+    }
+
+    @Test
+    public void redetectsWhenTemplateNoLongerMatches() {
+        detect(frame(0, 0, false));
+        detect(frame(0, 0, true));
+        assertFalse(mDetection.tracked);
+        assertEquals(2, mDetector.calls);
+    }
+
+    @Test
+    public void redetectsWhenFaceLeavesView() {
+        detect(frame(0, 0, false));
+        mDetector.faces = 0;
+        detect(frame(0, 0, true));
+        assertFalse(mDetection.tracked);
+        assertEquals(0, mDetection.faces);
+        // Without a face to follow, every frame runs the detector.
+        detect(frame(0, 0, true));
+        assertFalse(mDetection.tracked);
+        assertEquals(3, mDetector.calls);
+    }
+
+    @Test
+    public void redetectsAfterScannerFailure() {
+        final Bitmap bitmap = frame(0, 0, false);
+        detect(bitmap);
+        mScanner.fail = true;
+        assertFalse(mRecognizer.recognize(bitmap, mDetection, 0.7f, 2).found);
+        detect(bitmap);
+        assertFalse(mDetection.tracked);
+        assertEquals(2, mDetector.calls);
+    }
+
+    @Test
+    public void redetectsAfterReset() {
+        final Bitmap bitmap = frame(0, 0, false);
+        detect(bitmap);
+        mRecognizer.reset();
+        detect(bitmap);
+        assertFalse(mDetection.tracked);
+        assertEquals(2, mDetector.calls);
+    }
+
+    @Test
+    public void skipsFramesOfAnotherSize() {
+        final Bitmap bitmap = Bitmap.createBitmap(WIDTH / 2, HEIGHT / 2, Bitmap.Config.ARGB_8888);
+        assertFalse(mRecognizer.detect(bitmap, mDetection));
+        assertEquals(0, mDetector.calls);
+    }
+
+    @Test
+    public void recognizesEnrolledFace() {
+        final TrackingFaceRecognizer recognizer = recognizerFor(ENROLLED);
+        mScanner.embedding = new float[] {2, 0.2f, 0, 0};
+        final Bitmap bitmap = frame(0, 0, false);
+        assertTrue(recognizer.detect(bitmap, mDetection));
+        final TrackingFaceRecognizer.Result result =
+                recognizer.recognize(bitmap, mDetection, 0.7f, 2);
+        assertTrue(result.recognized);
+        assertEquals(7, result.faceId);
+    }
+
+    @Test
+    public void rejectsMatchTheLibraryDisagreesWith() {
+        final TrackingFaceRecognizer recognizer = recognizerFor(ENROLLED);
+        mScanner.embedding = new float[] {2, 0.2f, 0, 0};
+        mScanner.distance = 0.8f;
+        final Bitmap bitmap = frame(0, 0, false);
+        assertTrue(recognizer.detect(bitmap, mDetection));
+        final TrackingFaceRecognizer.Result result =
+                recognizer.recognize(bitmap, mDetection, 0.7f, 2);
+        assertFalse(result.recognized);
+        assertEquals(-1, result.faceId);
+    }
+
+    @Test
+    public void appliesThresholdsOfEachCall() {
+        // The secure thresholds need no other recognizer.
+        final TrackingFaceRecognizer recognizer = recognizerFor(ENROLLED);
+        // At a distance of 0.6 from the enrolled face.
+        mScanner.embedding = new float[] {0.82f, 0.5724f, 0, 0};
+        final Bitmap bitmap = frame(0, 0, false);
+        assertTrue(recognizer.detect(bitmap, mDetection));
+        assertTrue(recognizer.recognize(bitmap, mDetection, 0.7f, 2).recognized);
+        assertFalse(recognizer.recognize(bitmap, mDetection, 0.5f, 1).recognized);
+    }
+}